@@ -18,6 +18,7 @@ import jenkins.model.Jenkins;
 import org.jenkins.plugins.lockableresources.jobParameter.LockableResourcesParameterDefinition;
 import org.jenkins.plugins.lockableresources.jobParameter.LockableResourcesParameterValue;
 import org.jenkins.plugins.lockableresources.jobProperty.RequiredResourcesProperty;
+import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.resources.ResourceCapability;
 import org.jenkins.plugins.lockableresources.step.LockStep;
 import org.jenkins.plugins.lockableresources.step.LockStepExecution;
@@ -34,5 +35,7 @@ public final class BackwardCompatibility {
             xstream2.addCompatibilityAlias("org.jenkins.plugins.lockableresources.LockableResourcesParameterDefinition", LockableResourcesParameterDefinition.class);
             xstream2.addCompatibilityAlias("org.jenkins.plugins.lockableresources.LockableResourcesParameterValue", LockableResourcesParameterValue.class);
         }
+        // Lock steps saved with the configuration of the manager (now saved with its runtime state)
+        Jenkins.XSTREAM2.aliasField("queuedContexts", LockableResourcesManager.class, "legacyQueuedContexts");
     }
 }
@@ -30,6 +30,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -39,6 +40,8 @@ import org.jenkins.plugins.lockableresources.resources.LockableResource;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 
 public abstract class Utils {
+    private static final Pattern LABELS_SEPARATOR = Pattern.compile("[\\s,]+\\s*");
+
     @Nonnull
     public static Set<String> splitLabels(@Nullable String label) {
         Set<String> res = new HashSet<>();
@@ -47,7 +50,7 @@ public abstract class Utils {
             if(label.startsWith(LockableResource.GROOVY_LABEL_MARKER)) {
                 res.add(label);
             } else if(!label.isEmpty()) {
-                res.addAll(Arrays.asList(label.split("[\\s,]+\\s*")));
+                res.addAll(Arrays.asList(LABELS_SEPARATOR.split(label)));
             }
         }
         return res;
@@ -27,6 +27,7 @@ import jenkins.model.Jenkins;
 import org.jenkins.plugins.lockableresources.BackwardCompatibility;
 import org.jenkins.plugins.lockableresources.Messages;
 import org.jenkins.plugins.lockableresources.Utils;
+import org.jenkins.plugins.lockableresources.resources.CapabilityStatus;
 import org.jenkins.plugins.lockableresources.resources.LockableResource;
 import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
 import org.kohsuke.stapler.StaplerRequest;
@@ -86,17 +87,24 @@ public class LockableResourcesRootAction implements RootAction {
 
     @Exported
     public int getFreeResourceAmount(String labels) {
-        return LockableResourcesManager.get().getFreeAmount(labels, null, null);
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        CapabilityStatus status = manager.getCapabilityStatus(labels);
+        if((status != null) && (manager.getResourceFromName(labels) == null)) {
+            // Single label: use the counters maintained by the manager.
+            // A resource named as the label also matches, but is not counted there
+            return status.getFree();
+        }
+        return manager.getFreeAmount(labels, null, null);
     }
 
     @Exported
-    public Set<String> getAllLabels() {
-        return LockableResourcesManager.get().getAllLabels(false);
+    public List<CapabilityStatus> getCapabilitiesStatus() {
+        return LockableResourcesManager.get().getCapabilitiesStatus();
     }
 
     @Exported
-    public int getNumberOfAllLabels() {
-        return LockableResourcesManager.get().getAllLabels(false).size();
+    public Set<String> getAllLabels() {
+        return LockableResourcesManager.get().getAllLabels(false);
     }
 
     @Exported
@@ -40,6 +40,8 @@ public class RequiredResourcesProperty extends OptionalJobProperty<Job<?, ?>> {
     protected Collection<RequiredResources> requiredResourcesList = new ArrayList<>();
     @Exported
     protected String variableName = null;
+    @Exported
+    protected Integer priority = 0;
 
     /**
      * Backward compatibility
@@ -80,6 +82,16 @@ public class RequiredResourcesProperty extends OptionalJobProperty<Job<?, ?>> {
         this.variableName = variableName;
     }
 
+    @Exported
+    public Integer getPriority() {
+        return priority;
+    }
+
+    @DataBoundSetter
+    public void setPriority(Integer priority) {
+        this.priority = priority;
+    }
+
     /**
      * Magically called when imported from XML file
      * Manage backward compatibility
@@ -0,0 +1,29 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.queue;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
+
+/**
+ * Forget the items leaving the queue (see {@link LockableResourcesManager#onQueueItemLeft}
+ * and {@link LockableResourcesQueueTaskDispatcher#forget})
+ */
+@Extension
+public class LockableResourcesQueueListener extends QueueListener {
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        LockableResourcesManager.get().onQueueItemLeft(li.getId());
+        LockableResourcesQueueTaskDispatcher dispatcher = QueueTaskDispatcher.all().get(LockableResourcesQueueTaskDispatcher.class);
+        if(dispatcher != null) {
+            dispatcher.forget(li.getId());
+        }
+    }
+}
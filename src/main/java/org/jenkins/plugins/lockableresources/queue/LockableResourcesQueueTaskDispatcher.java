@@ -18,8 +18,9 @@ import hudson.model.Queue;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
-import javax.annotation.CheckForNull;
+import java.util.concurrent.ConcurrentHashMap;
 import org.jenkins.plugins.lockableresources.BackwardCompatibility;
 import org.jenkins.plugins.lockableresources.Utils;
 import org.jenkins.plugins.lockableresources.jobProperty.RequiredResourcesProperty;
@@ -27,8 +28,18 @@ import org.jenkins.plugins.lockableresources.resources.LockableResource;
 import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.resources.RequiredResources;
 
+/**
+ * Blocks the queue items (freestyle builds) until their required resources are queued for them.
+ * <p>
+ * Jenkins checks every blocked item at each queue maintenance: the item found blocked is recorded with the
+ * version of the state of the resources (see {@link LockableResourcesManager#getStateVersion()}), and the same
+ * cause is returned without selecting the resources again while this version does not change.
+ */
 @Extension
 public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
+    /** Blocked items by id, forgotten when they leave the queue (see {@link #forget}) */
+    private final Map<Long, Blocked> blockedItems = new ConcurrentHashMap<>();
+
     /**
      * Backward compatibility
      */
@@ -53,48 +64,71 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
         if(property == null) {
             return null;
         }
-        return getCauseOfBlockage(project, item);
-    }
-
-    @CheckForNull
-    private static CauseOfBlockage getCauseOfBlockage(Job<?, ?> project, Queue.Item item) {
-        Set<LockableResource> selected = LockableResourcesManager.get().queue(project, item);
+        Blocked blocked = blockedItems.get(item.getId());
+        if((blocked != null) && (blocked.property == property) && (blocked.version == manager.getStateVersion())) {
+            // Nothing has changed since the item was found blocked
+            return blocked.cause;
+        }
+        Set<LockableResource> selected;
+        long version;
+        synchronized(manager) {
+            selected = manager.queue(project, item);
+            version = manager.getStateVersion();
+        }
         if(selected == null) {
-            EnvVars env = Utils.getEnvVars(item);
-            return new BecauseResourcesLocked(project, env);
+            CauseOfBlockage cause = new BecauseResourcesLocked(property, Utils.getEnvVars(item));
+            blockedItems.put(item.getId(), new Blocked(version, property, cause));
+            return cause;
         } else {
+            blockedItems.remove(item.getId());
             return null;
         }
     }
 
-    private static class BecauseResourcesLocked extends CauseOfBlockage {
-        private final Collection<RequiredResources> requiredResourcesList;
-        private final EnvVars env;
+    /**
+     * Forget an item leaving the queue
+     *
+     * @param id
+     */
+    void forget(long id) {
+        blockedItems.remove(id);
+    }
 
-        BecauseResourcesLocked(Job<?, ?> project, EnvVars env) {
-            LockableResourcesManager manager = LockableResourcesManager.get();
-            RequiredResourcesProperty property = manager.getProjectRequiredResourcesProperty(project);
-            if(property == null) {
-                this.requiredResourcesList = null;
-            } else {
-                this.requiredResourcesList = property.getRequiredResourcesList();
-            }
-            this.env = env;
+    private static final class Blocked {
+        final long version;
+        final RequiredResourcesProperty property;
+        final CauseOfBlockage cause;
+
+        Blocked(long version, RequiredResourcesProperty property, CauseOfBlockage cause) {
+            this.version = version;
+            this.property = property;
+            this.cause = cause;
         }
+    }
 
-        @Override
-        public String getShortDescription() {
+    private static class BecauseResourcesLocked extends CauseOfBlockage {
+        /** Computed once: Jenkins asks for it at each queue maintenance */
+        private final String description;
+
+        BecauseResourcesLocked(RequiredResourcesProperty property, EnvVars env) {
+            Collection<RequiredResources> requiredResourcesList = property.getRequiredResourcesList();
             StringBuilder lbl = new StringBuilder("Waiting for resources");
             if(requiredResourcesList != null) {
                 for(RequiredResources rr : requiredResourcesList) {
-                    if(rr.getExpandedResources(env).isEmpty()) {
+                    String resources = rr.getExpandedResources(env);
+                    if(resources.isEmpty()) {
                         lbl.append(" ").append(rr.getExpandedLabels(env));
                     } else {
-                        lbl.append(" ").append(rr.getExpandedResources(env));
+                        lbl.append(" ").append(resources);
                     }
                 }
             }
-            return lbl.toString();
+            this.description = lbl.toString();
+        }
+
+        @Override
+        public String getShortDescription() {
+            return description;
         }
     }
 }
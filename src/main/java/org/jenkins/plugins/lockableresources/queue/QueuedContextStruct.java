@@ -8,6 +8,14 @@
  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 package org.jenkins.plugins.lockableresources.queue;
 
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.model.Run;
 import java.io.IOException;
 import java.io.Serializable;
@@ -30,13 +38,25 @@ public class QueuedContextStruct implements Serializable {
      * Reference to the lock step
      */
     private final LockStep step;
+    /**
+     * Wait statistics: time the step was queued at, and number of times a resource it may use
+     * was taken by another build meanwhile
+     */
+    private final long queuedSince;
+    /** Incremented under the manager lock, read by the state writer */
+    private volatile int overtaken = 0;
 
     /*
      * Constructor for the QueuedContextStruct class.
      */
     public QueuedContextStruct(StepContext context, LockStep step) {
+        this(context, step, System.currentTimeMillis());
+    }
+
+    private QueuedContextStruct(StepContext context, LockStep step, long queuedSince) {
         this.context = context;
         this.step = step;
+        this.queuedSince = queuedSince;
     }
 
     /**
@@ -57,6 +77,29 @@ public class QueuedContextStruct implements Serializable {
         return this.step;
     }
 
+    /**
+     * @return The time the step was queued at (or the time it was loaded, if saved by an older version)
+     */
+    public long getQueuedSince() {
+        return queuedSince;
+    }
+
+    public long getWaitingTime() {
+        return System.currentTimeMillis() - queuedSince;
+    }
+
+    /**
+     * @return The number of times a resource this step may use was taken by another build while it was waiting
+     */
+    public int getOvertaken() {
+        return overtaken;
+    }
+
+    @SuppressFBWarnings(value = "VO_VOLATILE_INCREMENT", justification = "Only incremented under the manager lock")
+    public void overtaken() {
+        overtaken++;
+    }
+
     @CheckForNull
     public Run<?, ?> getBuild() {
         try {
@@ -65,4 +108,76 @@ public class QueuedContextStruct implements Serializable {
             return null;
         }
     }
+
+    /**
+     * Writes the context and the step without reflection on this class (found by XStream2 by its name).<br>
+     * Same XML form as the reflection-based converter, so both can read each other
+     * (the wait statistics are not read by older versions).
+     */
+    public static final class ConverterImpl implements Converter {
+        private final Mapper mapper;
+
+        public ConverterImpl(XStream xstream) {
+            this.mapper = xstream.getMapper();
+        }
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type == QueuedContextStruct.class;
+        }
+
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            QueuedContextStruct struct = (QueuedContextStruct) source;
+            writeField(writer, context, "context", struct.context, StepContext.class);
+            writeField(writer, context, "step", struct.step, LockStep.class);
+            writeValue(writer, "queuedSince", struct.queuedSince);
+            writeValue(writer, "overtaken", struct.overtaken);
+        }
+
+        private static void writeValue(HierarchicalStreamWriter writer, String name, long value) {
+            writer.startNode(name);
+            writer.setValue(Long.toString(value));
+            writer.endNode();
+        }
+
+        private void writeField(HierarchicalStreamWriter writer, MarshallingContext context, String name, Object value, Class<?> declaredType) {
+            if(value == null) {
+                return;
+            }
+            writer.startNode(name);
+            if(value.getClass() != declaredType) {
+                writer.addAttribute(mapper.aliasForSystemAttribute("class"), mapper.serializedClass(value.getClass()));
+            }
+            context.convertAnother(value);
+            writer.endNode();
+        }
+
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            StepContext stepContext = null;
+            LockStep step = null;
+            long queuedSince = System.currentTimeMillis();
+            int overtaken = 0;
+            while(reader.hasMoreChildren()) {
+                reader.moveDown();
+                String classAttribute = reader.getAttribute(mapper.aliasForSystemAttribute("class"));
+                if(reader.getNodeName().equals("context")) {
+                    Class<?> type = (classAttribute == null) ? StepContext.class : mapper.realClass(classAttribute);
+                    stepContext = (StepContext) context.convertAnother(null, type);
+                } else if(reader.getNodeName().equals("step")) {
+                    Class<?> type = (classAttribute == null) ? LockStep.class : mapper.realClass(classAttribute);
+                    step = (LockStep) context.convertAnother(null, type);
+                } else if(reader.getNodeName().equals("queuedSince")) {
+                    queuedSince = Long.parseLong(reader.getValue());
+                } else if(reader.getNodeName().equals("overtaken")) {
+                    overtaken = Integer.parseInt(reader.getValue());
+                }
+                reader.moveUp();
+            }
+            QueuedContextStruct struct = new QueuedContextStruct(stepContext, step, queuedSince);
+            struct.overtaken = overtaken;
+            return struct;
+        }
+    }
 }
@@ -0,0 +1,104 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.io.Serializable;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Amount of resources per state for a single capability.<br>
+ * Maintained incrementally by {@link LockableResourcesManager} on each state transition,
+ * so reading it does not require to walk the resources.
+ */
+@ExportedBean(defaultVisibility = 999)
+public class CapabilityStatus implements Serializable, Comparable<CapabilityStatus> {
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private int total = 0;
+    private int free = 0;
+    private int locked = 0;
+    private int reserved = 0;
+    private int queued = 0;
+
+    CapabilityStatus(String name) {
+        this.name = name;
+    }
+
+    CapabilityStatus(CapabilityStatus other) {
+        this.name = other.name;
+        this.total = other.total;
+        this.free = other.free;
+        this.locked = other.locked;
+        this.reserved = other.reserved;
+        this.queued = other.queued;
+    }
+
+    /**
+     * Add (or remove) a resource in the given state
+     *
+     * @param isLocked
+     * @param isReserved
+     * @param isQueued
+     * @param delta      1 to add the resource, -1 to remove it
+     */
+    void count(boolean isLocked, boolean isReserved, boolean isQueued, int delta) {
+        total += delta;
+        if(isLocked) {
+            locked += delta;
+        }
+        if(isReserved) {
+            reserved += delta;
+        }
+        if(isQueued) {
+            queued += delta;
+        }
+        if(!isLocked && !isReserved && !isQueued) {
+            free += delta;
+        }
+    }
+
+    @Exported
+    public String getName() {
+        return name;
+    }
+
+    @Exported
+    public int getTotal() {
+        return total;
+    }
+
+    @Exported
+    public int getFree() {
+        return free;
+    }
+
+    @Exported
+    public int getLocked() {
+        return locked;
+    }
+
+    @Exported
+    public int getReserved() {
+        return reserved;
+    }
+
+    @Exported
+    public int getQueued() {
+        return queued;
+    }
+
+    @Override
+    public int compareTo(CapabilityStatus o) {
+        return name.compareTo(o.name);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + free + "/" + total + " free";
+    }
+}
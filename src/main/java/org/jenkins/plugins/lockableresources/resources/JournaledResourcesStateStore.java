@@ -0,0 +1,174 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Decorator of a store recording the state transitions of the resources in an append-only
+ * journal ({@link LockStateJournal}) instead of saving the whole state each time.<br>
+ * A snapshot is written by the decorated store when the lock steps change, when the journal
+ * becomes too large or too old, and after a failed write; the journal is then cleared.
+ * On startup, the journal is replayed on top of the last snapshot.
+ * <p>
+ * Fields are guarded by the manager lock (see {@link ResourcesStateStore}).
+ */
+final class JournaledResourcesStateStore extends ResourcesStateStore {
+    private static final Logger LOGGER = Logger.getLogger(JournaledResourcesStateStore.class.getName());
+    private static final int JOURNAL_MAX_RECORDS = Integer.getInteger(LockableResourcesManager.class.getName() + ".journalMaxRecords", 10000);
+    private static final long JOURNAL_MAX_AGE = Long.getLong(LockableResourcesManager.class.getName() + ".journalMaxAge", TimeUnit.MINUTES.toMillis(10));
+    private final ResourcesStateStore store;
+    private LockStateJournal journal = null;
+    /** Segment of the journal the records are appended to */
+    private long segment = 0;
+    /** Records appended since the last snapshot */
+    private int records = 0;
+    private long lastSnapshotTime = System.currentTimeMillis();
+    /** Resources whose state has changed since the last prepared write */
+    private final Set<LockableResource> pending = new LinkedHashSet<>();
+    /**
+     * The next write is a snapshot. Until the first snapshot, the files of the decorated store
+     * are only known to be complete if they have been loaded.
+     */
+    private boolean snapshotNeeded = true;
+    /** A write has failed: the next write is a snapshot */
+    private volatile boolean failed = false;
+
+    JournaledResourcesStateStore(@Nonnull ResourcesStateStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public String getId() {
+        return store.getId();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return store.getDisplayName();
+    }
+
+    @Override
+    public boolean load(LockableResourcesManager manager, Collection<LockableResource> resources, List<QueuedContextStruct> queuedContexts) {
+        boolean loaded = store.load(manager, resources, queuedContexts);
+        Map<String, LockableResource> byName = new HashMap<>();
+        for(LockableResource r : resources) {
+            byName.put(r.getName(), r);
+        }
+        int replayed = getJournal().replay(byName);
+        if(replayed > 0) {
+            LOGGER.info("Restored " + replayed + " resource states from the journal");
+        }
+        snapshotNeeded = !loaded;
+        return loaded;
+    }
+
+    @Override
+    public void resourceChanged(LockableResource resource) {
+        store.resourceChanged(resource);
+        pending.add(resource);
+    }
+
+    @Override
+    public void contextsChanged() {
+        store.contextsChanged();
+        snapshotNeeded = true;
+    }
+
+    @Override
+    public Write prepare(LockableResourcesManager manager, Collection<LockableResource> resources, List<QueuedContextStruct> queuedContexts) {
+        final LockStateJournal j = getJournal();
+        if(!snapshotNeeded && !failed && resources.containsAll(pending) && (records + pending.size() < JOURNAL_MAX_RECORDS)
+                && (System.currentTimeMillis() - lastSnapshotTime < JOURNAL_MAX_AGE)) {
+            if(pending.isEmpty()) {
+                return null;
+            }
+            final long recordSegment = segment;
+            final List<String> newRecords = new ArrayList<>(pending.size());
+            for(LockableResource r : pending) {
+                newRecords.add(LockStateJournal.toRecord(r));
+            }
+            records += newRecords.size();
+            pending.clear();
+            return new Write() {
+                @Override
+                public void run() throws IOException {
+                    try {
+                        j.append(recordSegment, newRecords);
+                    } catch(IOException | RuntimeException e) {
+                        failed = true;
+                        throw e;
+                    }
+                }
+            };
+        }
+        // Snapshot: it contains all the records written so far, which are deleted once it is written
+        final Write snapshot = store.prepare(manager, resources, queuedContexts);
+        final long firstKept = ++segment;
+        records = 0;
+        lastSnapshotTime = System.currentTimeMillis();
+        pending.clear();
+        snapshotNeeded = false;
+        failed = false;
+        return new Write() {
+            @Override
+            public void run() throws IOException {
+                try {
+                    if(snapshot != null) {
+                        snapshot.run();
+                    }
+                } catch(IOException | RuntimeException e) {
+                    failed = true;
+                    throw e;
+                }
+                j.deleteBefore(firstKept);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        if(journal != null) {
+            journal.close();
+        }
+        store.close();
+    }
+
+    @Nonnull
+    private LockStateJournal getJournal() {
+        if(journal == null) {
+            journal = new LockStateJournal(Jenkins.getInstance().getRootDir());
+            segment = journal.nextSegment();
+        }
+        return journal;
+    }
+
+    /**
+     * Decorators of the same store are interchangeable
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof JournaledResourcesStateStore) && ((JournaledResourcesStateStore) obj).store.equals(store);
+    }
+
+    @Override
+    public int hashCode() {
+        return store.hashCode();
+    }
+}
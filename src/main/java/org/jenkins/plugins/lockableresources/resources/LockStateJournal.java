@@ -0,0 +1,251 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Append-only journal of the state of the resources.<br>
+ * Each record contains the whole runtime state (lock, queue, reservation) of one resource,
+ * so that replaying the records in order on top of the last snapshot restores the last state.
+ * <p>
+ * The journal is split in numbered segments: a new segment is started on startup and each time
+ * a snapshot is serialized, and older segments are deleted once this snapshot is on disk
+ * (see {@link JournaledResourcesStateStore}).
+ */
+final class LockStateJournal {
+    private static final Logger LOGGER = Logger.getLogger(LockStateJournal.class.getName());
+    private static final String PREFIX = "org.jenkins.plugins.lockableresources.LockableResourcesManager.journal.";
+    private static final String SEPARATOR = "\t";
+    private static final int FIELDS = 8;
+    private final File dir;
+    /** Segment {@link #out} appends to */
+    private long outSegment = -1;
+    private Writer out = null;
+
+    LockStateJournal(@Nonnull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return The number of the segment following the existing ones: records are appended to a new segment
+     *         on startup, as the last existing one may end with an incomplete record
+     */
+    synchronized long nextSegment() {
+        TreeMap<Long, File> segments = getSegments();
+        return segments.isEmpty() ? 0 : segments.lastKey() + 1;
+    }
+
+    /**
+     * @return Existing segments, sorted by number
+     */
+    private TreeMap<Long, File> getSegments() {
+        TreeMap<Long, File> res = new TreeMap<>();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                if(f.getName().startsWith(PREFIX)) {
+                    try {
+                        res.put(Long.parseLong(f.getName().substring(PREFIX.length())), f);
+                    } catch(NumberFormatException e) {
+                        LOGGER.warning("Ignoring unexpected journal file " + f);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Append records (see {@link #toRecord}) to a segment
+     *
+     * @param segment
+     * @param records
+     *
+     * @throws IOException
+     */
+    synchronized void append(long segment, @Nonnull Collection<String> records) throws IOException {
+        if(records.isEmpty()) {
+            return;
+        }
+        if(segment != outSegment) {
+            close();
+        }
+        if(out == null) {
+            File file = new File(dir, PREFIX + segment);
+            out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            outSegment = segment;
+        }
+        StringBuilder sb = new StringBuilder();
+        for(String record : records) {
+            sb.append(record).append('\n');
+        }
+        out.write(sb.toString());
+        out.flush();
+    }
+
+    /**
+     * Delete the segments older than the given one (they are part of a snapshot written on disk)
+     *
+     * @param firstKept
+     */
+    synchronized void deleteBefore(long firstKept) {
+        if(outSegment < firstKept) {
+            close();
+        }
+        for(Map.Entry<Long, File> entry : getSegments().headMap(firstKept).entrySet()) {
+            if(!entry.getValue().delete()) {
+                LOGGER.warning("Cannot delete journal file " + entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Apply all the records of the journal to the resources loaded from the last snapshot
+     *
+     * @param resourcesByName
+     *
+     * @return Number of replayed records
+     */
+    synchronized int replay(@Nonnull Map<String, LockableResource> resourcesByName) {
+        int replayed = 0;
+        for(File file : getSegments().values()) {
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+                StringBuilder line = new StringBuilder();
+                int c;
+                while((c = reader.read()) >= 0) {
+                    if(c != '\n') {
+                        line.append((char) c);
+                    } else {
+                        if(applyRecord(line.toString(), resourcesByName)) {
+                            replayed++;
+                        }
+                        line.setLength(0);
+                    }
+                }
+                if(line.length() > 0) {
+                    // Not terminated: interrupted by a crash, even if all the fields are there
+                    LOGGER.warning("Ignoring incomplete record at the end of " + file + ": " + line);
+                }
+            } catch(IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read journal file " + file, e);
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @param r
+     *
+     * @return The record of the current state of the resource
+     */
+    @Nonnull
+    static String toRecord(@Nonnull LockableResource r) {
+        return encode(r.getName()) + SEPARATOR
+                + encode(r.getBuildExternalizableId()) + SEPARATOR
+                + r.getQueueItemId() + SEPARATOR
+                + encode(r.getQueueItemProject()) + SEPARATOR
+                + r.getQueuingStarted() + SEPARATOR
+                + encode(r.getReservedBy()) + SEPARATOR
+                + encode(r.getReservedFor()) + SEPARATOR
+                + r.getReservedUntil();
+    }
+
+    /**
+     * @param r
+     *
+     * @return true if the resource has no runtime state to save (free and never queued or reserved)
+     */
+    static boolean isEmpty(@Nonnull LockableResource r) {
+        return (r.getBuildExternalizableId() == null) && (r.getQueueItemId() == LockableResource.NOT_QUEUED) && (r.getQueuingStarted() == 0)
+                && (r.getReservedBy() == null) && (r.getReservedFor() == null) && (r.getReservedUntil() == 0);
+    }
+
+    /**
+     * Restore the state of a resource from a record
+     *
+     * @param record
+     * @param resourcesByName
+     *
+     * @return false if the record is invalid or the resource does not exist anymore
+     */
+    static boolean applyRecord(@Nonnull String record, @Nonnull Map<String, LockableResource> resourcesByName) {
+        String[] fields = record.split(SEPARATOR, -1);
+        if(fields.length != FIELDS) {
+            LOGGER.warning("Ignoring invalid record: " + record);
+            return false;
+        }
+        LockableResource r = resourcesByName.get(decode(fields[0]));
+        if(r == null) {
+            // Deleted resource
+            return false;
+        }
+        try {
+            r.restoreState(decode(fields[1]), Long.parseLong(fields[2]), decode(fields[3]), Long.parseLong(fields[4]),
+                    decode(fields[5]), decode(fields[6]), Long.parseLong(fields[7]));
+            return true;
+        } catch(NumberFormatException e) {
+            LOGGER.warning("Ignoring invalid record: " + record);
+            return false;
+        }
+    }
+
+    synchronized void close() {
+        if(out != null) {
+            try {
+                out.close();
+            } catch(IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot close journal", e);
+            }
+            out = null;
+            outSegment = -1;
+        }
+    }
+
+    /**
+     * null is written as an empty field, other values are prefixed to be distinguished from it
+     */
+    private static String encode(@CheckForNull String value) {
+        if(value == null) {
+            return "";
+        }
+        try {
+            return "=" + URLEncoder.encode(value, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @CheckForNull
+    private static String decode(String field) {
+        if(field.isEmpty()) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(field.substring(1), "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -9,8 +9,12 @@
 package org.jenkins.plugins.lockableresources.resources;
 
 import com.infradna.tool.bridge_method_injector.WithBridgeMethods;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Util;
@@ -34,7 +38,6 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -55,6 +58,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     private static final long serialVersionUID = 1L;
     private static final Logger LOGGER = Logger.getLogger(LockableResource.class.getName());
     public static final int NOT_QUEUED = 0;
+    private static final int NOT_INDEXED = -1;
     /**
      * Groovy scripts are limited to labels of defined resources
      * They can not be use for other structure (in particular RequiredResources)
@@ -67,18 +71,30 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     protected String description = "";
     @Exported
     protected String labels = "";
+    /*
+     * Runtime state: saved by the manager apart from the configuration (see ResourcesState),
+     * still read from the configuration saved by older versions
+     */
     @Exported
-    protected String reservedBy = null;
+    protected transient String reservedBy = null;
     @Exported
-    protected String reservedFor = null;
+    protected transient String reservedFor = null;
     @Exported
-    protected long reservedUntil = 0;
-    private long queueItemId = NOT_QUEUED;
-    private String queueItemProject = null;
+    protected transient long reservedUntil = 0;
+    private transient long queueItemId = NOT_QUEUED;
+    private transient String queueItemProject = null;
     private transient Run<?, ?> build = null;
-    // Needed to make the state non-transient
-    private String buildExternalizableId = null;
-    private long queuingStarted = 0;
+    private transient String buildExternalizableId = null;
+    private transient long queuingStarted = 0;
+    /**
+     * Dense index given by {@link LockableResourcesManager} to build its bitset indexes
+     */
+    private transient int index = NOT_INDEXED;
+    /**
+     * Capabilities parsed from {@link #labels} (immutable, with canonical instances)
+     */
+    private transient Set<ResourceCapability> capabilities = Collections.emptySet();
+    private transient ResourceCapability myselfAsCapability = null;
     /**
      * Not used anymore
      */
@@ -101,6 +117,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     public LockableResource(@Nullable String name, @Nonnull String labels) {
         this.name = name;
         this.labels = labels;
+        this.capabilities = parseCapabilities(labels);
     }
 
     @Exported
@@ -120,7 +137,13 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
     @DataBoundSetter
     public void setLabels(String labels) {
+        Set<ResourceCapability> oldCapabilities = capabilities;
         this.labels = Util.fixNull(labels);
+        this.capabilities = parseCapabilities(this.labels);
+        if(index != NOT_INDEXED) {
+            // Already managed: keep the capabilities index up to date
+            LockableResourcesManager.get().onLabelsChanged(this, oldCapabilities);
+        }
     }
 
     @Exported
@@ -185,7 +208,6 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.SECOND, (int) Math.round(Math.min(hours, manager.getMaxReservationHours()) * 3600));
         this.reservedUntil = cal.getTimeInMillis();
-        validateDataTimeout();
     }
 
     public void unReserve() {
@@ -194,16 +216,28 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         this.reservedUntil = 0;
     }
 
+    /**
+     * @return The capabilities of this resource (without its name). Immutable.
+     */
+    @Nonnull
     public Set<ResourceCapability> getCapabilities() {
+        return capabilities;
+    }
+
+    @Nonnull
+    private static Set<ResourceCapability> parseCapabilities(@Nullable String labels) {
         if((labels != null) && labels.startsWith(GROOVY_LABEL_MARKER)) {
             // Special case: the whole label is a groovy script
-            return new TreeSet<>();
+            return Collections.emptySet();
         }
-        return ResourceCapability.splitCapabilities(labels);
+        return ResourceCapability.splitInternedCapabilities(labels);
     }
 
     public ResourceCapability getMyselfAsCapability() {
-        return new ResourceCapability(name);
+        if(myselfAsCapability == null) {
+            myselfAsCapability = ResourceCapability.intern(name);
+        }
+        return myselfAsCapability;
     }
 
     public boolean hasCapabilities(Collection<ResourceCapability> capabilities, @Nullable EnvVars env) {
@@ -238,9 +272,23 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
                 }
             }
         }
-        Set<ResourceCapability> capabilities = getCapabilities();
-        capabilities.add(getMyselfAsCapability());
-        return ResourceCapability.hasAllCapabilities(capabilities, neededCapabilities) && ResourceCapability.hasNoneOfCapabilities(capabilities, prohibitedCapabilities);
+        // The resource name is an implicit capability
+        ResourceCapability myself = getMyselfAsCapability();
+        if(neededCapabilities != null) {
+            for(ResourceCapability capability : neededCapabilities) {
+                if(!capability.equals(myself) && !capabilities.contains(capability)) {
+                    return false;
+                }
+            }
+        }
+        if(prohibitedCapabilities != null) {
+            for(ResourceCapability capability : prohibitedCapabilities) {
+                if(capability.equals(myself) || capabilities.contains(capability)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     public boolean isValidLabel(String candidate, @Nonnull EnvVars env) {
@@ -253,9 +301,8 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         binding.setVariable("resourceDescription", Util.fixNull(description));
         binding.setVariable("resourceLabels", Util.fixNull(labels));
         String expressionToEvaluate = expression.replace(GROOVY_LABEL_MARKER, "");
-        GroovyShell shell = new GroovyShell(binding);
         try {
-            Object result = shell.evaluate(expressionToEvaluate);
+            Object result = ScriptCache.createScript(expressionToEvaluate, binding).run();
             if(LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.fine("Checked resource " + name + " for " + expression + " with " + binding + " -> " + result);
             }
@@ -268,20 +315,18 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     }
 
     private boolean labelsContain(String candidate) {
-        return Utils.splitLabels(labels).contains(candidate);
+        return capabilities.contains(new ResourceCapability(candidate));
     }
 
     public boolean isReserved(@Nullable String userId) {
-        validateDataTimeout();
         if(reservedFor != null) {
-            return (!reservedFor.equals(userId));
+            return !isReservationExpired(System.currentTimeMillis()) && !reservedFor.equals(userId);
         }
         return reservedBy != null;
     }
     
     public boolean hasExclusiveUse(@Nullable String userId) {
-        validateDataTimeout();
-        return (reservedFor != null) && reservedFor.equals(userId);
+        return (reservedFor != null) && !isReservationExpired(System.currentTimeMillis()) && reservedFor.equals(userId);
     }
     
     public String getReservedByEmail() {
@@ -299,13 +344,11 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     }
 
     public boolean isQueued() {
-        this.validateDataTimeout();
-        return queueItemId != NOT_QUEUED;
+        return getQueueItemId() != NOT_QUEUED;
     }
 
     public boolean isQueuedByTask(long taskId) {
-        this.validateDataTimeout();
-        return queueItemId == taskId;
+        return getQueueItemId() == taskId;
     }
 
     public void unqueue() {
@@ -314,9 +357,14 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         queuingStarted = 0;
     }
 
+    /**
+     * The build is not resolved: locks held by builds that do not exist anymore are released
+     * when Jenkins starts (see {@link LockableResourcesManager#reconcileHeldBuilds()})
+     *
+     * @return
+     */
     public boolean isLocked() {
-        this.validateDataTimeout();
-        return getBuild() != null;
+        return buildExternalizableId != null;
     }
 
     public boolean isLockedByBuild(@Nonnull Run<?, ?> build) {
@@ -341,7 +389,9 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         if(isLocked()) {
             return String.format("[%s] is locked by '%s'", name, buildExternalizableId);
         }
-        validateDataTimeout();
+        if(isReservationExpired(System.currentTimeMillis())) {
+            return null;
+        }
         if(reservedFor != null) {
             return String.format("[%s] is reserved by '%s' for '%s' until %s", name, reservedBy, reservedFor, getReservedUntilString());
         } else if(reservedBy != null) {
@@ -367,6 +417,11 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         }
     }
 
+    @CheckForNull
+    String getBuildExternalizableId() {
+        return buildExternalizableId;
+    }
+
     public void setBuild(Run<?, ?> lockedBy) {
         this.build = lockedBy;
         if(lockedBy != null) {
@@ -377,7 +432,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     }
 
     public Task getTask() {
-        Item item = Queue.getInstance().getItem(queueItemId);
+        Item item = Queue.getInstance().getItem(getQueueItemId());
         if(item != null) {
             return item.task;
         } else {
@@ -386,13 +441,11 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     }
 
     public long getQueueItemId() {
-        this.validateDataTimeout();
-        return queueItemId;
+        return isQueueExpired(System.currentTimeMillis()) ? NOT_QUEUED : queueItemId;
     }
 
     public String getQueueItemProject() {
-        this.validateDataTimeout();
-        return this.queueItemProject;
+        return isQueueExpired(System.currentTimeMillis()) ? null : this.queueItemProject;
     }
 
     public void setQueued(long queueItemId) {
@@ -405,20 +458,66 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         this.queueItemProject = queueProjectName;
     }
 
-    private void validateDataTimeout() {
+    /**
+     * Queued resources are released after {@link #QUEUE_TIMEOUT} seconds if the queue item did not start.<br>
+     * Reads take the timeout into account, the state itself is cleared by the manager when the timeout is reached.
+     *
+     * @param now Current time in milliseconds
+     *
+     * @return
+     */
+    boolean isQueueExpired(long now) {
+        return (queuingStarted > 0) && ((now / 1000) - queuingStarted > QUEUE_TIMEOUT);
+    }
+
+    /**
+     * @param now Current time in milliseconds
+     *
+     * @return True if the reservation for a user has reached {@link #reservedUntil}
+     */
+    boolean isReservationExpired(long now) {
+        return (reservedFor != null) && (now > reservedUntil);
+    }
+
+    long getQueuingStarted() {
+        return queuingStarted;
+    }
+
+    /**
+     * Restore the runtime state saved by {@link LockStateJournal}
+     */
+    void restoreState(@Nullable String buildExternalizableId, long queueItemId, @Nullable String queueItemProject, long queuingStarted,
+            @Nullable String reservedBy, @Nullable String reservedFor, long reservedUntil) {
+        this.build = null;
+        this.buildExternalizableId = buildExternalizableId;
+        this.queueItemId = queueItemId;
+        this.queueItemProject = queueItemProject;
+        this.queuingStarted = queuingStarted;
+        this.reservedBy = reservedBy;
+        this.reservedFor = reservedFor;
+        this.reservedUntil = reservedUntil;
+    }
+
+    /**
+     * @return Time (in milliseconds) of the next queue or reservation expiry, 0 if none
+     */
+    long getNextExpiry() {
+        long next = 0;
         if(queuingStarted > 0) {
-            long now = System.currentTimeMillis() / 1000;
-            if(now - queuingStarted > QUEUE_TIMEOUT) {
-                unqueue();
-            }
+            next = (queuingStarted + QUEUE_TIMEOUT + 1) * 1000;
         }
-        if((reservedFor != null) && (Calendar.getInstance().getTimeInMillis() > reservedUntil)) {
-            reservedFor = null;
-            reservedBy = null;
-            reservedUntil = 0;
-            LockableResourcesManager manager = LockableResourcesManager.get();
-            manager.resumeQueuedContext(false);
+        if((reservedFor != null) && ((next == 0) || (reservedUntil + 1 < next))) {
+            next = reservedUntil + 1;
         }
+        return next;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
     }
 
     /* public void queueAdd(StepContext context) {
@@ -487,9 +586,23 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         /* if(queuedContexts == null) {
          * queuedContexts = new ArrayList<>();
          * } */
+        index = NOT_INDEXED;
+        capabilities = parseCapabilities(labels);
         return this;
     }
 
+    /**
+     * Create a resource read from the configuration (see {@link ConverterImpl} and {@link ResourcesConfigReader})
+     */
+    static LockableResource create(String name, @CheckForNull String labels, @CheckForNull String description,
+            @CheckForNull String buildExternalizableId, long queueItemId, @CheckForNull String queueItemProject, long queuingStarted,
+            @CheckForNull String reservedBy, @CheckForNull String reservedFor, long reservedUntil) {
+        LockableResource r = new LockableResource(name, Util.fixNull(labels));
+        r.description = Util.fixNull(description);
+        r.restoreState(buildExternalizableId, queueItemId, queueItemProject, queuingStarted, reservedBy, reservedFor, reservedUntil);
+        return r;
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<LockableResource> {
         @Override
@@ -497,4 +610,84 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
             return "Resource";
         }
     }
+
+    /**
+     * Compact XML form of the configuration of a resource (found by XStream2 by its name):
+     * values are written only if not empty, as attributes when they fit on one line.
+     * <p>
+     * Also reads the reflection-based format of older versions, including the runtime state
+     * they used to save with the configuration.
+     */
+    public static final class ConverterImpl implements Converter {
+        @Override
+        public boolean canConvert(Class type) {
+            return type == LockableResource.class;
+        }
+
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            LockableResource r = (LockableResource) source;
+            String[][] values = {{"name", r.name}, {"labels", r.labels}, {"description", r.description}};
+            // Attributes must be written before child nodes
+            for(String[] value : values) {
+                if(!Util.fixNull(value[1]).isEmpty() && !isMultiLine(value[1])) {
+                    writer.addAttribute(value[0], value[1]);
+                }
+            }
+            for(String[] value : values) {
+                if(!Util.fixNull(value[1]).isEmpty() && isMultiLine(value[1])) {
+                    writer.startNode(value[0]);
+                    writer.setValue(value[1]);
+                    writer.endNode();
+                }
+            }
+        }
+
+        private static boolean isMultiLine(String value) {
+            return (value.indexOf('\n') >= 0) || (value.indexOf('\r') >= 0);
+        }
+
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            String name = reader.getAttribute("name");
+            String labels = reader.getAttribute("labels");
+            String description = reader.getAttribute("description");
+            // Runtime state saved by older versions
+            String buildExternalizableId = null;
+            long queueItemId = NOT_QUEUED;
+            String queueItemProject = null;
+            long queuingStarted = 0;
+            String reservedBy = null;
+            String reservedFor = null;
+            long reservedUntil = 0;
+            while(reader.hasMoreChildren()) {
+                reader.moveDown();
+                String node = reader.getNodeName();
+                if(node.equals("name")) {
+                    name = reader.getValue();
+                } else if(node.equals("labels")) {
+                    labels = reader.getValue();
+                } else if(node.equals("description")) {
+                    description = reader.getValue();
+                } else if(node.equals("buildExternalizableId")) {
+                    buildExternalizableId = reader.getValue();
+                } else if(node.equals("queueItemId")) {
+                    queueItemId = Long.parseLong(reader.getValue());
+                } else if(node.equals("queueItemProject")) {
+                    queueItemProject = reader.getValue();
+                } else if(node.equals("queuingStarted")) {
+                    queuingStarted = Long.parseLong(reader.getValue());
+                } else if(node.equals("reservedBy")) {
+                    reservedBy = reader.getValue();
+                } else if(node.equals("reservedFor")) {
+                    reservedFor = reader.getValue();
+                } else if(node.equals("reservedUntil")) {
+                    reservedUntil = Long.parseLong(reader.getValue());
+                }
+                // Other nodes (like the deprecated queuedContexts) are ignored
+                reader.moveUp();
+            }
+            return create(name, labels, description, buildExternalizableId, queueItemId, queueItemProject, queuingStarted, reservedBy, reservedFor, reservedUntil);
+        }
+    }
 }
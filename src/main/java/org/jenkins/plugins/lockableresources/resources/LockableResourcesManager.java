@@ -11,29 +11,55 @@ package org.jenkins.plugins.lockableresources.resources;
 import groovy.lang.Tuple2;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.Util;
 import hudson.XmlFile;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
+import hudson.init.Terminator;
 import hudson.matrix.MatrixConfiguration;
+import hudson.model.AsyncPeriodicWork;
 import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import hudson.widgets.Widget;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -42,6 +68,7 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import org.jenkins.plugins.lockableresources.BackwardCompatibility;
@@ -64,6 +91,59 @@ public class LockableResourcesManager extends GlobalConfiguration {
     private static final Logger LOGGER = Logger.getLogger(LockableResourcesManager.class.getName());
     @Exported
     protected Set<LockableResource> resources = new LinkedHashSet<>();
+    /**
+     * Name based index of {@link #resources}.<br>
+     * The set itself is kept to preserve the ordering displayed to users.
+     */
+    private transient Map<String, LockableResource> resourcesByName = new HashMap<>();
+    /**
+     * Resources by their dense index (see {@link LockableResource#getIndex()}).
+     * Used to resolve the bits of the capability index.
+     */
+    private transient List<LockableResource> resourcesByIndex = new ArrayList<>();
+    /**
+     * Inverted index: capability (label) -> indexes of the resources having this capability.<br>
+     * Resource names are not stored here, they are resolved with {@link #resourcesByName}.
+     */
+    private transient Map<ResourceCapability, BitSet> resourcesByCapability = new HashMap<>();
+    /**
+     * Locked resources by the externalizable id of the build holding them.
+     * Kept up to date by {@link #lock}, {@link #unlock} and {@link #reset}.
+     */
+    private transient Map<String, Set<LockableResource>> lockedResourcesByBuild = new HashMap<>();
+    /**
+     * Resources queued by freestyle builds: project full name -> queue item id -> resources.<br>
+     * Queued resources may silently time out: entries are checked (and pruned) when read.
+     */
+    private transient Map<String, Map<Long, Set<LockableResource>>> queuedResourcesByProject = new HashMap<>();
+    /** Last known state of each resource (by index), as accounted in {@link #capabilitiesStatus} */
+    private transient BitSet lockedResources = new BitSet();
+    private transient BitSet reservedResources = new BitSet();
+    private transient BitSet queuedResources = new BitSet();
+    /** Amount of total/free/locked/reserved/queued resources per capability */
+    private transient Map<ResourceCapability, CapabilityStatus> capabilitiesStatus = new HashMap<>();
+    /**
+     * Read side of the manager: published after each modification (under the manager lock),
+     * read without locking.
+     */
+    private transient volatile ResourcesSnapshot snapshot = ResourcesSnapshot.EMPTY;
+    /** The resources or their labels have changed since the last published snapshot */
+    private transient boolean structureChanged = false;
+    /** The counters have changed since the last published snapshot */
+    private transient boolean statusChanged = false;
+    /**
+     * The outcome of a selection may have changed since the last published snapshot (state of a resource,
+     * blocked items, starving lock step): the version is incremented even if the counters have not changed
+     */
+    private transient boolean selectionChanged = false;
+    /**
+     * Next expiry (reservation or queue hold) of each resource, and resources by expiry time.<br>
+     * Expired resources are released by a single timer task scheduled for the earliest expiry.
+     */
+    private transient Map<LockableResource, Long> expiryByResource = new HashMap<>();
+    private transient TreeMap<Long, Set<LockableResource>> resourcesByExpiry = new TreeMap<>();
+    private transient ScheduledFuture<?> expiryTask = null;
+    private transient long expiryTaskTime = 0;
     /** If this option is selected, the plugin will use an internal algorithm to select
      * the free resources based on their capabilities.<br>
      * The resource that has a unique capability among all other resources has less chance
@@ -73,19 +153,121 @@ public class LockableResourcesManager extends GlobalConfiguration {
      * This option is highly experimental.
      */
     @Exported
-    protected Boolean useFairSelection = false;
+    protected volatile Boolean useFairSelection = false;
     /**
      * Only used when this lockable resource is tried to be locked by {@link LockStep},
-     * otherwise (freestyle builds) regular Jenkins queue is used.
+     * otherwise (freestyle builds) regular Jenkins queue is used.<br>
+     * Saved with the runtime state (still read from the configuration saved by older versions).
      */
-    private final List<QueuedContextStruct> queuedContexts = new ArrayList<>();
+    private final transient List<QueuedContextStruct> queuedContexts = new ArrayList<>();
+    /**
+     * Lock steps saved with the configuration by older versions (read as "queuedContexts", see {@link BackwardCompatibility}).<br>
+     * Moved to {@link #queuedContexts} on load, never saved.
+     */
+    @Deprecated
+    private List<QueuedContextStruct> legacyQueuedContexts = null;
+    /**
+     * Wait index of {@link #queuedContexts}: waiters by required resource name and by capability,
+     * and waiters that can probably proceed (no missing resource) by priority then queue order
+     * (or newest build first, for inverse precedence).<br>
+     * Only the waiters that may use a resource are checked when it becomes available.
+     * The index is rebuilt when the resources or their labels change.
+     */
+    private transient Map<QueuedContextStruct, ResourceWaiter> waiters = new HashMap<>();
+    private transient Map<String, Set<ResourceWaiter>> waitersByName = new HashMap<>();
+    private transient Map<ResourceCapability, Set<ResourceWaiter>> waitersByCapability = new HashMap<>();
+    /** Waiters requiring groovy expressions only: checked for any resource */
+    private transient Set<ResourceWaiter> unindexedWaiters = new HashSet<>();
+    private transient TreeSet<ResourceWaiter> readyWaiters = new TreeSet<>(new WaiterComparator());
+    private transient TreeSet<ResourceWaiter> readyWaitersNewestFirst = new TreeSet<>(new NewestWaiterComparator());
+    /** All the waiters, oldest first (see {@link #updateStarvingWaiter()}) */
+    private transient TreeSet<ResourceWaiter> waitersBySeniority = new TreeSet<>(new SeniorityComparator());
+    /**
+     * Oldest waiter which has waited for more than {@link #starvationMinutes} and can proceed some day: the resources
+     * it may use are held back for it. Updated when waiters are added or removed, and by {@link #starvationTask}.
+     */
+    private transient ResourceWaiter starvingWaiter = null;
+    /** Update of {@link #starvingWaiter} when the oldest waiter reaches {@link #starvationMinutes} */
+    private transient ScheduledFuture<?> starvationTask = null;
+    private transient long starvationTaskTime = 0;
+    /** Resources not locked, not queued and not reserved (except for a given user), by index */
+    private transient BitSet availableResources = new BitSet();
+    /** Resources reserved for a given user (available to this user only, see {@link #getFreeResourcesBits}) */
+    private transient BitSet exclusiveResources = new BitSet();
+    /**
+     * Fair selection index (see {@link #sortResources(BitSet)}): signature of each resource, and signatures
+     * each resource is compatible with. Built on first use, and rebuilt when the resources or their labels change.
+     */
+    private transient Signature[] signatureOfResource = new Signature[0];
+    private transient List<List<Signature>> signaturesByResource = new ArrayList<>();
+    private transient boolean fairnessStale = true;
+    private transient boolean waitIndexStale = true;
+    private transient long waiterArrivals = 0;
+    /**
+     * Queue items (freestyle builds) blocked waiting for resources: priority -> item id -> resources it may use.<br>
+     * An item does not take resources that a blocked item with a higher priority may use. Items that can never
+     * get their resources (not enough resources match) are not indexed: they would hold back the other items forever.
+     * Cleared when the resources or their labels change (items are indexed again when checked).
+     */
+    private transient TreeMap<Integer, Map<Long, BitSet>> blockedItemsByPriority = new TreeMap<>();
+    private transient Map<Long, Integer> blockedItemsPriority = new HashMap<>();
     @Exported
-    protected Double defaultReservationHours = 12.0; //hours
+    protected volatile Double defaultReservationHours = 12.0; //hours
     @Exported
-    protected Double maxReservationHours = 72.0; //hours
+    protected volatile Double maxReservationHours = 72.0; //hours
     /** Show widget with resources status in Jenkins main view (below executors list) */
     @Exported
-    protected Boolean showWidget = true;
+    protected volatile Boolean showWidget = true;
+    /**
+     * Delay (ms) before writing the runtime state to disk after a modification.<br>
+     * 0 means that each modification waits for the write of the state, still holding the manager lock
+     * (other modifications wait meanwhile). Otherwise all the modifications done during this delay
+     * are written at once by a background task (and on shutdown), without holding the manager lock.
+     */
+    @Exported
+    protected volatile Integer saveDelay = 0;
+    /**
+     * Aging of the waiting lock steps: once the oldest lock step has waited for this number of minutes,
+     * the resources it may use are held back for it (not given to other builds) until it can proceed.<br>
+     * 0 disables aging: the first waiting build that can proceed gets the resources, so a build needing many
+     * resources may wait forever while smaller requests keep taking the resources freed one by one.
+     */
+    @Exported
+    protected volatile Integer starvationMinutes = 0;
+    private transient ScheduledFuture<?> stateSaveTask = null;
+    /** Delay (ms) before writing the runtime state again after a failed write, when {@link #saveDelay} is 0 */
+    private static final long SAVE_RETRY_DELAY = Long.getLong(LockableResourcesManager.class.getName() + ".saveRetryDelay", 5000);
+    /**
+     * Storage of the runtime state (see {@link ResourcesStateStore}), identified by its id
+     */
+    @Exported
+    protected volatile String stateStore = XmlResourcesStateStore.ID;
+    private transient ResourcesStateStore store = null;
+    /**
+     * Runs the writes prepared under the manager lock, one at a time and in the order they were prepared
+     * (see {@link #submitWrite()}). Created on first use.
+     */
+    private transient ExecutorService stateWriter = null;
+    /**
+     * Number of files the state of the resources is split into (by hash of the resource name).<br>
+     * With more than one shard, only the shards holding modified resources are written,
+     * and the lock steps are written only when they change.
+     */
+    @Exported
+    protected volatile Integer stateShards = 1;
+    /**
+     * Record the state transitions in an append-only journal instead of saving the whole state
+     * (see {@link JournaledResourcesStateStore}).
+     */
+    @Exported
+    protected volatile Boolean useJournal = false;
+    /** Threads and timeout (seconds) of the resolution of the builds holding resources on startup */
+    private static final int RECONCILE_THREADS = Integer.getInteger(LockableResourcesManager.class.getName() + ".reconcileThreads", 8);
+    private static final long RECONCILE_TIMEOUT = Long.getLong(LockableResourcesManager.class.getName() + ".reconcileTimeout", 60);
+    /** Period (minutes) of the check of the builds holding resources once Jenkins is started (see {@link ReconcileWork}) */
+    private static final long RECONCILE_PERIOD = Long.getLong(LockableResourcesManager.class.getName() + ".reconcilePeriod", 10);
+    /** Resolves the builds holding resources (see {@link #reconcile()}). Created on first use, its threads stop when idle */
+    private transient ExecutorService reconcileExecutor = null;
 
     @DataBoundConstructor
     public LockableResourcesManager() {
@@ -94,8 +276,148 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
     @Override
     public synchronized void load() {
+        boolean streamed = loadConfig();
+        store = ResourcesStateStore.get(stateStore, Boolean.TRUE.equals(useJournal));
+        boolean migrated = false;
+        if(!store.load(this, resources, queuedContexts)) {
+            ResourcesStateStore defaultStore = ResourcesStateStore.get(XmlResourcesStateStore.ID);
+            if(!defaultStore.equals(store) && defaultStore.load(this, resources, queuedContexts)) {
+                // Another store has been selected: copy the state saved in the default one
+                migrated = true;
+            } else if(getConfigFile().exists()) {
+                // Older versions saved the runtime state with the configuration: it has been read by super.load()
+                if(legacyQueuedContexts != null) {
+                    queuedContexts.clear();
+                    queuedContexts.addAll(legacyQueuedContexts);
+                }
+                migrated = true;
+            }
+        }
+        legacyQueuedContexts = null;
+        if(streamed) {
+            // The resources have been indexed while reading the configuration
+            indexStates();
+        } else {
+            indexResources();
+        }
+        if(migrated && waitForWrite(submitWrite())) {
+            // The state has been written by the selected store: remove it from the configuration
+            save();
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        if((jenkins != null) && (jenkins.getInitLevel() == InitMilestone.COMPLETED)) {
+            updateWidgetVisibility();
+        }
+        // Otherwise done by initWidget() once Jenkins is started
+    }
+
+    /**
+     * Read the configuration with {@link ResourcesConfigReader}: the resources are indexed while
+     * the file is parsed.<br>
+     * Falls back to XStream ({@link #load()} of the super class) if the format is not supported.
+     *
+     * @return true if the resources have been indexed
+     */
+    private boolean loadConfig() {
+        XmlFile file = getConfigFile();
+        if(file.exists()) {
+            resources = new LinkedHashSet<>();
+            clearIndexes();
+            try(InputStream in = new BufferedInputStream(new FileInputStream(file.getFile()))) {
+                ResourcesConfigReader.read(in, new ResourcesConfigReader.Handler() {
+                    @Override
+                    public void resource(LockableResource resource) {
+                        if(resources.add(resource)) {
+                            indexStructure(resource);
+                        }
+                    }
+
+                    @Override
+                    public boolean field(String name, String value) {
+                        return setConfigField(name, value);
+                    }
+                });
+                return true;
+            } catch(ResourcesConfigReader.UnsupportedFormatException e) {
+                LOGGER.log(Level.FINE, "Reading " + file + " with XStream: " + e.getMessage());
+            } catch(IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+            }
+            // Start again from a blank configuration
+            resources = new LinkedHashSet<>();
+        }
         super.load();
-        setShowWidget(showWidget);
+        return false;
+    }
+
+    /**
+     * Set a persisted field of the manager (neither static nor transient) from its value in the
+     * configuration file, so that a new field is read without being listed here.
+     *
+     * @param name  Field name in the configuration file
+     * @param value
+     *
+     * @return false if the field is unknown or not of a simple type
+     */
+    private boolean setConfigField(String name, String value) {
+        Field field;
+        try {
+            field = LockableResourcesManager.class.getDeclaredField(name);
+        } catch(NoSuchFieldException e) {
+            return false;
+        }
+        if((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) {
+            return false;
+        }
+        Object converted;
+        try {
+            converted = convertConfigValue(field.getType(), value);
+        } catch(IllegalArgumentException e) {
+            // Including NumberFormatException
+            LOGGER.log(Level.FINE, "Invalid value of " + name + ": " + value, e);
+            return false;
+        }
+        if(converted == null) {
+            return false;
+        }
+        try {
+            field.setAccessible(true);
+            field.set(this, converted);
+            return true;
+        } catch(IllegalAccessException | SecurityException e) {
+            LOGGER.log(Level.FINE, "Failed to set " + name, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return The value, or null if the type is not supported by {@link ResourcesConfigReader}
+     */
+    @CheckForNull
+    static Object convertConfigValue(Class<?> type, String value) {
+        if(type == String.class) {
+            return value;
+        } else if((type == Boolean.class) || (type == boolean.class)) {
+            return Boolean.valueOf(value);
+        } else if((type == Integer.class) || (type == int.class)) {
+            return Integer.valueOf(value.trim());
+        } else if((type == Long.class) || (type == long.class)) {
+            return Long.valueOf(value.trim());
+        } else if((type == Double.class) || (type == double.class)) {
+            return Double.valueOf(value.trim());
+        }
+        return null;
+    }
+
+    /**
+     * Show the widget (if enabled) once Jenkins is started, not to delay the loading of the manager
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void initWidget() {
+        LockableResourcesManager manager = get();
+        synchronized(manager) {
+            manager.updateWidgetVisibility();
+        }
     }
 
     /**
@@ -120,564 +442,1958 @@ public class LockableResourcesManager extends GlobalConfiguration {
         return new XmlFile(Jenkins.XSTREAM2, oldFile);
     }
 
+    /**
+     * @return Unmodifiable view of the resources as of the last published snapshot
+     *         (use {@link #setResources} or {@link #createResource} to modify them)
+     */
     @Exported
-    public synchronized Set<LockableResource> getResources() {
-        return resources;
+    public Set<LockableResource> getResources() {
+        return snapshot.getResources();
     }
 
     @DataBoundSetter
     public synchronized void setResources(Set<LockableResource> resources) {
         this.resources = resources;
+        indexResources();
     }
 
-    @Exported
-    public synchronized Boolean getUseFairSelection() {
-        return useFairSelection;
-    }
-
-    @DataBoundSetter
-    public synchronized void setUseFairSelection(Boolean useFairSelection) {
-        this.useFairSelection = useFairSelection;
+    /**
+     * Rebuild the indexes after the whole set of resources has been replaced
+     */
+    private void indexResources() {
+        if(store != null) {
+            // Resources may have been removed
+            for(LockableResource r : resourcesByIndex) {
+                store.resourceChanged(r);
+            }
+        }
+        clearIndexes();
+        for(LockableResource r : resources) {
+            indexStructure(r);
+        }
+        indexStates();
     }
 
-    @Exported
-    public synchronized Double getDefaultReservationHours() {
-        return defaultReservationHours;
+    private void clearIndexes() {
+        resourcesByName = new HashMap<>(resources.size() * 2);
+        resourcesByIndex = new ArrayList<>(resources.size());
+        resourcesByCapability = new HashMap<>();
+        lockedResourcesByBuild = new HashMap<>();
+        queuedResourcesByProject = new HashMap<>();
+        lockedResources = new BitSet();
+        reservedResources = new BitSet();
+        queuedResources = new BitSet();
+        capabilitiesStatus = new HashMap<>();
+        expiryByResource = new HashMap<>();
+        resourcesByExpiry = new TreeMap<>();
+        availableResources = new BitSet();
+        exclusiveResources = new BitSet();
+        waitIndexStale = true;
+        fairnessStale = true;
     }
 
-    @DataBoundSetter
-    public synchronized void setDefaultReservationHours(Double defaultReservationHours) {
-        this.defaultReservationHours = defaultReservationHours;
+    /**
+     * Index the state of all the resources indexed by {@link #indexStructure}
+     */
+    private void indexStates() {
+        for(LockableResource r : resourcesByIndex) {
+            indexBuild(r);
+            indexQueued(r);
+            refreshState(r);
+        }
+        publishSnapshot();
     }
 
-    @Exported
-    public synchronized Double getMaxReservationHours() {
-        return maxReservationHours;
+    private void indexResource(LockableResource resource) {
+        indexStructure(resource);
+        indexBuild(resource);
+        indexQueued(resource);
+        refreshState(resource);
     }
 
-    @DataBoundSetter
-    public synchronized void setMaxReservationHours(Double maxReservationHours) {
-        this.maxReservationHours = maxReservationHours;
+    /**
+     * Index the name and the capabilities of the resource
+     *
+     * @param resource
+     */
+    private void indexStructure(LockableResource resource) {
+        resource.setIndex(resourcesByIndex.size());
+        resourcesByIndex.add(resource);
+        resourcesByName.put(resource.getName(), resource);
+        indexCapabilities(resource, resource.getCapabilities());
+        structureChanged = true;
     }
 
-    @Exported
-    public synchronized Boolean getShowWidget() {
-        return showWidget;
+    /**
+     * Publish a new snapshot for readers if something has changed.<br>
+     * Must be called before leaving a method modifying the resources.
+     */
+    private void publishSnapshot() {
+        if(structureChanged) {
+            waitIndexStale = true;
+            fairnessStale = true;
+            blockedItemsByPriority.clear();
+            blockedItemsPriority.clear();
+            snapshot = new ResourcesSnapshot(snapshot.getVersion() + 1, resourcesByIndex, resourcesByName, resourcesByCapability, capabilitiesStatus,
+                    availableResources, exclusiveResources);
+        } else if(statusChanged || selectionChanged) {
+            snapshot = snapshot.withState(statusChanged ? capabilitiesStatus : null, availableResources, exclusiveResources);
+        }
+        structureChanged = false;
+        statusChanged = false;
+        selectionChanged = false;
     }
 
-    @DataBoundSetter
-    public synchronized void setShowWidget(Boolean showWidget) {
-        this.showWidget = showWidget;
-        updateWidgetVisibility();
+    /**
+     * @return A number incremented each time the resources, their labels or their state change,
+     *         or anything else that may change the outcome of a selection (see {@link #queue})
+     */
+    public long getStateVersion() {
+        return snapshot.getVersion();
     }
 
-    private void updateWidgetVisibility() {
-        List<Widget> widgets = Jenkins.getInstance().getWidgets();
-        LockableResourcesWidget alreadyVisible = null;
-        for(Widget widget : widgets) {
-            if(widget instanceof LockableResourcesWidget) {
-                alreadyVisible = (LockableResourcesWidget) widget;
-                break;
-            }
-        }
-        if(showWidget) {
-            if(alreadyVisible == null) {
-                widgets.add(new LockableResourcesWidget());
+    private void indexBuild(LockableResource resource) {
+        String buildId = resource.getBuildExternalizableId();
+        if(buildId != null) {
+            Set<LockableResource> locked = lockedResourcesByBuild.get(buildId);
+            if(locked == null) {
+                locked = new HashSet<>();
+                lockedResourcesByBuild.put(buildId, locked);
             }
-        } else if(alreadyVisible != null) {
-            widgets.remove(alreadyVisible);
+            locked.add(resource);
         }
     }
 
-    public synchronized Set<LockableResource> getAllResources() {
-        return resources;
-    }
-
-    @Override
-    public String getDisplayName() {
-        return "External Resources";
+    private void unindexBuild(LockableResource resource) {
+        String buildId = resource.getBuildExternalizableId();
+        if(buildId != null) {
+            Set<LockableResource> locked = lockedResourcesByBuild.get(buildId);
+            if(locked != null) {
+                locked.remove(resource);
+                if(locked.isEmpty()) {
+                    lockedResourcesByBuild.remove(buildId);
+                }
+            }
+        }
     }
 
-    public static Set<LockableResource> filterFreeResources(Collection<LockableResource> resources, @Nullable String userId) {
-        HashSet<LockableResource> free = new HashSet<>();
-        for(LockableResource r : resources) {
-            if(r.isFree(userId)) {
-                free.add(r);
+    private void indexQueued(LockableResource resource) {
+        String projectFullName = resource.getQueueItemProject();
+        if(projectFullName != null) {
+            Map<Long, Set<LockableResource>> items = queuedResourcesByProject.get(projectFullName);
+            if(items == null) {
+                items = new HashMap<>();
+                queuedResourcesByProject.put(projectFullName, items);
+            }
+            Long queueItemId = resource.getQueueItemId();
+            Set<LockableResource> queued = items.get(queueItemId);
+            if(queued == null) {
+                queued = new HashSet<>();
+                items.put(queueItemId, queued);
             }
+            queued.add(resource);
         }
-        return free;
     }
 
-    public synchronized int getFreeAmount(Collection<LockableResource> resources, @Nullable String userId) {
-        return filterFreeResources(resources, userId).size();
+    private void unindexQueued(LockableResource resource) {
+        String projectFullName = resource.getQueueItemProject();
+        if(projectFullName != null) {
+            Map<Long, Set<LockableResource>> items = queuedResourcesByProject.get(projectFullName);
+            if(items != null) {
+                Long queueItemId = resource.getQueueItemId();
+                Set<LockableResource> queued = items.get(queueItemId);
+                if(queued != null) {
+                    queued.remove(resource);
+                    if(queued.isEmpty()) {
+                        items.remove(queueItemId);
+                    }
+                }
+                if(items.isEmpty()) {
+                    queuedResourcesByProject.remove(projectFullName);
+                }
+            }
+        }
     }
 
-    public synchronized int getFreeAmount(String labels, @Nullable EnvVars env, @Nullable String userId) {
-        Set<LockableResource> res = getResourcesFromCapabilities(ResourceCapability.splitCapabilities(labels), null, env);
-        return filterFreeResources(res, userId).size();
+    /**
+     * Queue the resource for a freestyle build and keep {@link #queuedResourcesByProject} up to date
+     *
+     * @param resource
+     * @param queueItemId
+     * @param projectFullName
+     */
+    private void queueResource(LockableResource resource, long queueItemId, String projectFullName) {
+        unindexQueued(resource);
+        resource.setQueued(queueItemId, projectFullName);
+        indexQueued(resource);
+        refreshState(resource);
     }
 
-    public synchronized Set<String> getAllResourceNames() {
-        HashSet<String> res = new HashSet<>(resources.size());
-        for(LockableResource r : resources) {
-            res.add(r.getName());
-        }
-        return res;
+    private void unqueueResource(LockableResource resource) {
+        unindexQueued(resource);
+        resource.unqueue();
+        refreshState(resource);
     }
 
-    @CheckForNull
-    public synchronized Set<LockableResource> getResourcesFromNames(@Nonnull Collection<String> resourceNames) {
-        LinkedHashSet<LockableResource> res = new LinkedHashSet<>(); // keep same ordering as input
-        if(resourceNames.isEmpty()) {
-            return res;
+    /**
+     * Get the resources still queued by the given project, grouped by queue item.<br>
+     * Entries that are no longer valid (unqueued or timed out) are removed from the index.
+     *
+     * @param projectFullName
+     *
+     * @return queue item id -> queued resources
+     */
+    @Nonnull
+    private Map<Long, Set<LockableResource>> getQueuedItems(String projectFullName) {
+        Map<Long, Set<LockableResource>> items = queuedResourcesByProject.get(projectFullName);
+        if(items == null) {
+            return Collections.emptyMap();
         }
-        LinkedHashSet<String> buffer = new LinkedHashSet<>(resourceNames); // constant remove time
-        for(LockableResource r : resources) {
-            String name = r.getName();
-            if(buffer.contains(name)) {
-                res.add(r);
-                buffer.remove(name);
-                if(buffer.isEmpty()) {
-                    return res;
+        for(Iterator<Map.Entry<Long, Set<LockableResource>>> itemIt = items.entrySet().iterator(); itemIt.hasNext();) {
+            Map.Entry<Long, Set<LockableResource>> item = itemIt.next();
+            for(Iterator<LockableResource> it = item.getValue().iterator(); it.hasNext();) {
+                LockableResource r = it.next();
+                if(!r.isQueuedByTask(item.getKey()) || !projectFullName.equals(r.getQueueItemProject())) {
+                    it.remove();
                 }
             }
+            if(item.getValue().isEmpty()) {
+                itemIt.remove();
+            }
         }
-        LOGGER.info("Unknown resources names: " + buffer);
-        return null; // At least one resource name is unknown
+        if(items.isEmpty()) {
+            queuedResourcesByProject.remove(projectFullName);
+        }
+        return items;
     }
 
-    public synchronized LockableResource getResourceFromName(String resourceName) {
-        if(resourceName != null) {
-            for(LockableResource resource : resources) {
-                if(resourceName.equals(resource.getName())) {
-                    return resource;
-                }
+    /**
+     * Change the build holding the resource and keep {@link #lockedResourcesByBuild} up to date
+     *
+     * @param resource
+     * @param build    null to release the resource
+     */
+    private void setBuild(LockableResource resource, @Nullable Run<?, ?> build) {
+        unindexBuild(resource);
+        resource.setBuild(build);
+        indexBuild(resource);
+        refreshState(resource);
+    }
+
+    private void indexCapabilities(LockableResource resource, Collection<ResourceCapability> capabilities) {
+        for(ResourceCapability capability : capabilities) {
+            BitSet bits = resourcesByCapability.get(capability);
+            if(bits == null) {
+                bits = new BitSet();
+                resourcesByCapability.put(capability, bits);
             }
+            bits.set(resource.getIndex());
         }
-        return null;
+        structureChanged = true;
+        countState(resource, capabilities, 1);
     }
 
-    public synchronized Set<String> getInvalidResourceNames(@Nonnull Collection<String> resourceNames) {
-        LinkedHashSet<String> buffer = new LinkedHashSet<>(resourceNames);
-        for(LockableResource r : resources) {
-            String name = r.getName();
-            if(buffer.contains(name)) {
-                buffer.remove(name);
-                if(buffer.isEmpty()) {
-                    return buffer;
+    private void unindexCapabilities(LockableResource resource, Collection<ResourceCapability> capabilities) {
+        countState(resource, capabilities, -1);
+        structureChanged = true;
+        for(ResourceCapability capability : capabilities) {
+            BitSet bits = resourcesByCapability.get(capability);
+            if(bits != null) {
+                bits.clear(resource.getIndex());
+                if(bits.isEmpty()) {
+                    resourcesByCapability.remove(capability);
                 }
             }
         }
-        return buffer; // At least one resource name is unknown
     }
 
-    public synchronized Set<LockableResource> getQueuedResourcesFromProject(String projectFullName) {
-        Set<LockableResource> matching = new HashSet<>();
-        for(LockableResource r : resources) {
-            String queueItemProject = r.getQueueItemProject();
-            if((queueItemProject != null) && queueItemProject.equals(projectFullName)) {
-                matching.add(r);
+    /**
+     * Add (or remove) the last known state of the resource to the counters of the given capabilities
+     *
+     * @param resource
+     * @param capabilities
+     * @param delta        1 to add the resource, -1 to remove it
+     */
+    private void countState(LockableResource resource, Collection<ResourceCapability> capabilities, int delta) {
+        int i = resource.getIndex();
+        for(ResourceCapability capability : capabilities) {
+            CapabilityStatus status = capabilitiesStatus.get(capability);
+            if(status == null) {
+                status = new CapabilityStatus(capability.getName());
+                capabilitiesStatus.put(capability, status);
+            }
+            status.count(lockedResources.get(i), reservedResources.get(i), queuedResources.get(i), delta);
+            statusChanged = true;
+            if(status.getTotal() <= 0) {
+                capabilitiesStatus.remove(capability);
             }
         }
-        return matching;
     }
 
-    // Adds already selected (in previous queue round) resources to 'selected'
-    private synchronized Set<LockableResource> getQueuedResources(String projectFullName, long taskId) {
-        Set<LockableResource> res = new HashSet<>();
-        for(LockableResource resource : resources) {
-            // This project might already have something in queue
-            String rProject = resource.getQueueItemProject();
-            if((rProject != null) && rProject.equals(projectFullName) && resource.isQueuedByTask(taskId)) {
-                // this item has queued the resource earlier
-                res.add(resource);
-            }
+    /**
+     * Update the counters of {@link #capabilitiesStatus} if the state of the resource has changed
+     * since the last call.<br>
+     * Must be called after each state transition of a managed resource.
+     *
+     * @param resource
+     */
+    private void refreshState(LockableResource resource) {
+        if(!isIndexed(resource)) {
+            return;
+        }
+        scheduleExpiry(resource);
+        if(store != null) {
+            // Otherwise not loaded yet: the whole state is written once a store is selected
+            store.resourceChanged(resource);
+        }
+        selectionChanged = true;
+        int i = resource.getIndex();
+        boolean locked = (resource.getBuildExternalizableId() != null);
+        boolean reserved = resource.isReserved(null);
+        boolean queued = resource.isQueued();
+        boolean available = !locked && !queued && (!reserved || (resource.getReservedFor() != null));
+        exclusiveResources.set(i, resource.getReservedFor() != null);
+        if(available != availableResources.get(i)) {
+            availableResources.set(i, available);
+            onAvailabilityChanged(resource, available);
+        }
+        if((locked == lockedResources.get(i)) && (reserved == reservedResources.get(i)) && (queued == queuedResources.get(i))) {
+            return;
+        }
+        Set<ResourceCapability> capabilities = resource.getCapabilities();
+        countState(resource, capabilities, -1);
+        boolean wasFree = !lockedResources.get(i) && !reservedResources.get(i) && !queuedResources.get(i);
+        lockedResources.set(i, locked);
+        reservedResources.set(i, reserved);
+        queuedResources.set(i, queued);
+        countState(resource, capabilities, 1);
+        boolean free = !locked && !reserved && !queued;
+        if(free != wasFree) {
+            onFreeChanged(i, free);
         }
-        return res;
     }
 
-    public synchronized Set<LockableResource> getLockedResourcesFromBuild(Run<?, ?> build) {
-        Set<LockableResource> matching = new HashSet<>();
-        for(LockableResource r : resources) {
-            Run<?, ?> rBuild = r.getBuild();
-            if((rBuild != null) && (rBuild == build)) {
-                matching.add(r);
+    private void scheduleExpiry(LockableResource resource) {
+        Long previous = expiryByResource.remove(resource);
+        if(previous != null) {
+            Set<LockableResource> expiring = resourcesByExpiry.get(previous);
+            if(expiring != null) {
+                expiring.remove(resource);
+                if(expiring.isEmpty()) {
+                    resourcesByExpiry.remove(previous);
+                }
             }
         }
-        return matching;
+        long expiry = resource.getNextExpiry();
+        if(expiry > 0) {
+            expiryByResource.put(resource, expiry);
+            Set<LockableResource> expiring = resourcesByExpiry.get(expiry);
+            if(expiring == null) {
+                expiring = new HashSet<>();
+                resourcesByExpiry.put(expiry, expiring);
+            }
+            expiring.add(resource);
+            scheduleExpiryTask();
+        }
     }
 
-    public synchronized Boolean isValidLabel(String singleLabel, boolean acceptResourceName) {
-        return singleLabel.startsWith("$") || this.getAllLabels(acceptResourceName).contains(singleLabel);
+    /**
+     * Make sure the timer task will run at the earliest expiry
+     */
+    private void scheduleExpiryTask() {
+        if(resourcesByExpiry.isEmpty()) {
+            return;
+        }
+        long next = resourcesByExpiry.firstKey();
+        if((expiryTask != null) && (expiryTaskTime <= next)) {
+            // Already scheduled early enough
+            return;
+        }
+        if(expiryTask != null) {
+            expiryTask.cancel(false);
+        }
+        expiryTaskTime = next;
+        expiryTask = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expireResources();
+            }
+        }, Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
     }
 
-    public synchronized Set<String> getAllLabels(boolean withResourceNames) {
-        TreeSet<String> labels = new TreeSet<>();
-        for(LockableResource r : this.resources) {
-            Set<String> r_labels = Utils.splitLabels(r.getLabels());
-            labels.addAll(r_labels);
-            if(withResourceNames) {
-                labels.add(r.getName());
+    /**
+     * Release the queued resources and reservations that have reached their timeout
+     */
+    synchronized void expireResources() {
+        expiryTask = null;
+        long now = System.currentTimeMillis();
+        boolean released = false;
+        while(!resourcesByExpiry.isEmpty() && (resourcesByExpiry.firstKey() <= now)) {
+            for(LockableResource resource : resourcesByExpiry.pollFirstEntry().getValue()) {
+                expiryByResource.remove(resource);
+                if(resource.isQueueExpired(now)) {
+                    LOGGER.fine("Queue timeout for resource " + resource);
+                    unqueueResource(resource);
+                }
+                if(resource.isReservationExpired(now)) {
+                    LOGGER.fine("Reservation timeout for resource " + resource);
+                    resource.unReserve();
+                    released = true;
+                }
+                refreshState(resource);
             }
         }
-        return labels;
+        publishSnapshot();
+        scheduleExpiryTask();
+        if(released) {
+            saveState();
+            resumeQueuedContext(false);
+        }
     }
 
-    public synchronized Set<ResourceCapability> getAllCapabilities() {
-        HashSet<ResourceCapability> capabilities = new HashSet<>();
-        for(LockableResource r : this.resources) {
-            capabilities.addAll(r.getCapabilities());
-            capabilities.add(r.getMyselfAsCapability());
-        }
-        return capabilities;
+    private boolean isIndexed(LockableResource resource) {
+        int index = resource.getIndex();
+        return (index >= 0) && (index < resourcesByIndex.size()) && (resourcesByIndex.get(index) == resource);
     }
 
     /**
+     * Called by a managed resource when its labels have been modified
      *
-     * @param neededCapabilities
-     * @param prohibitedCapabilities
-     * @param env                    Used only for Groovy script execution
-     *
-     * @return
+     * @param resource
+     * @param oldCapabilities Capabilities of the resource before the modification
      */
-    public synchronized Set<ResourceCapability> getCompatibleCapabilities(Collection<ResourceCapability> neededCapabilities, Collection<ResourceCapability> prohibitedCapabilities, @Nullable EnvVars env) {
-        TreeSet<ResourceCapability> capabilities = new TreeSet();
-        for(LockableResource r : this.resources) {
-            if(r.hasCapabilities(neededCapabilities, prohibitedCapabilities, env)) {
-                capabilities.addAll(r.getCapabilities());
-                capabilities.add(r.getMyselfAsCapability());
-            }
+    synchronized void onLabelsChanged(LockableResource resource, Collection<ResourceCapability> oldCapabilities) {
+        if(isIndexed(resource)) {
+            unindexCapabilities(resource, oldCapabilities);
+            indexCapabilities(resource, resource.getCapabilities());
+            publishSnapshot();
         }
-        return capabilities;
     }
 
-    /**
-     *
-     * @param neededCapabilities
-     * @param prohibitedCapabilities
+    @Exported
+    public Boolean getUseFairSelection() {
+        return useFairSelection;
+    }
+
+    @DataBoundSetter
+    public synchronized void setUseFairSelection(Boolean useFairSelection) {
+        this.useFairSelection = useFairSelection;
+    }
+
+    @Exported
+    public Double getDefaultReservationHours() {
+        return defaultReservationHours;
+    }
+
+    @DataBoundSetter
+    public synchronized void setDefaultReservationHours(Double defaultReservationHours) {
+        this.defaultReservationHours = defaultReservationHours;
+    }
+
+    @Exported
+    public Double getMaxReservationHours() {
+        return maxReservationHours;
+    }
+
+    @DataBoundSetter
+    public synchronized void setMaxReservationHours(Double maxReservationHours) {
+        this.maxReservationHours = maxReservationHours;
+    }
+
+    @Exported
+    public Integer getSaveDelay() {
+        return saveDelay;
+    }
+
+    @DataBoundSetter
+    public synchronized void setSaveDelay(Integer saveDelay) {
+        this.saveDelay = saveDelay;
+    }
+
+    @Exported
+    public Integer getStarvationMinutes() {
+        return starvationMinutes;
+    }
+
+    @DataBoundSetter
+    public synchronized void setStarvationMinutes(Integer starvationMinutes) {
+        this.starvationMinutes = starvationMinutes;
+        updateStarvingWaiter();
+        publishSnapshot();
+    }
+
+    @Exported
+    public Boolean getUseJournal() {
+        return useJournal;
+    }
+
+    @DataBoundSetter
+    public synchronized void setUseJournal(Boolean useJournal) {
+        this.useJournal = useJournal;
+        updateStore();
+    }
+
+    @Exported
+    public Integer getStateShards() {
+        return stateShards;
+    }
+
+    @DataBoundSetter
+    public synchronized void setStateShards(Integer stateShards) {
+        this.stateShards = stateShards;
+    }
+
+    @Exported
+    public String getStateStore() {
+        return stateStore;
+    }
+
+    @DataBoundSetter
+    public synchronized void setStateStore(String stateStore) {
+        this.stateStore = stateStore;
+        updateStore();
+    }
+
+    public ListBoxModel doFillStateStoreItems() {
+        ListBoxModel items = new ListBoxModel();
+        for(ResourcesStateStore s : ResourcesStateStore.all()) {
+            items.add(s.getDisplayName(), s.getId());
+        }
+        return items;
+    }
+
+    @Exported
+    public Boolean getShowWidget() {
+        return showWidget;
+    }
+
+    @DataBoundSetter
+    public synchronized void setShowWidget(Boolean showWidget) {
+        this.showWidget = showWidget;
+        updateWidgetVisibility();
+    }
+
+    private void updateWidgetVisibility() {
+        List<Widget> widgets = Jenkins.getInstance().getWidgets();
+        LockableResourcesWidget alreadyVisible = null;
+        for(Widget widget : widgets) {
+            if(widget instanceof LockableResourcesWidget) {
+                alreadyVisible = (LockableResourcesWidget) widget;
+                break;
+            }
+        }
+        if(showWidget) {
+            if(alreadyVisible == null) {
+                widgets.add(new LockableResourcesWidget());
+            }
+        } else if(alreadyVisible != null) {
+            widgets.remove(alreadyVisible);
+        }
+    }
+
+    /**
+     * @return Unmodifiable view of the resources as of the last published snapshot
+     */
+    public Set<LockableResource> getAllResources() {
+        return snapshot.getResources();
+    }
+
+    /**
+     * Write the modifications of the runtime state reported to the store, immediately or later
+     * depending on {@link #saveDelay}.<br>
+     * The configuration is saved by {@link #save()}.
+     */
+    private void saveState() {
+        int delay = (saveDelay == null) ? 0 : saveDelay;
+        if(delay <= 0) {
+            // Synchronous mode: the modification waits for the write (still holding the manager lock)
+            waitForWrite(submitWrite());
+            return;
+        }
+        scheduleFlush(delay);
+    }
+
+    /**
+     * Write the runtime state later, unless a write is already scheduled
+     *
+     * @param delay ms
+     */
+    private void scheduleFlush(long delay) {
+        if(stateSaveTask == null) {
+            stateSaveTask = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the pending modifications of the runtime state (if any) to disk, and wait for the writes
+     * queued so far.<br>
+     * The state is copied under the manager lock, but serialized and written outside of it.
+     */
+    public void flush() {
+        Future<Boolean> written;
+        synchronized(this) {
+            written = submitWrite();
+            if(written == null) {
+                written = getStateWriter().submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return true;
+                    }
+                });
+            }
+        }
+        waitForWrite(written);
+    }
+
+    /**
+     * Copy the modifications of the runtime state and queue their write.<br>
+     * A failed write is retried later, also in synchronous mode (the next modification may not come soon).
+     *
+     * @return The write, null if there is nothing to write
+     */
+    @CheckForNull
+    private synchronized Future<Boolean> submitWrite() {
+        if(stateSaveTask != null) {
+            stateSaveTask.cancel(false);
+            stateSaveTask = null;
+        }
+        final ResourcesStateStore.Write write = store.prepare(this, resources, queuedContexts);
+        if(write == null) {
+            return null;
+        }
+        return getStateWriter().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    write.run();
+                    return true;
+                } catch(IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save the state of the resources", e);
+                    // The store writes everything next time
+                    Timer.get().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, ((saveDelay != null) && (saveDelay > 0)) ? saveDelay : SAVE_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                    return false;
+                }
+            }
+        });
+    }
+
+    /**
+     * @param written
+     *
+     * @return true if the state has been written (or there was nothing to write)
+     */
+    private static boolean waitForWrite(@CheckForNull Future<Boolean> written) {
+        if(written == null) {
+            return true;
+        }
+        try {
+            return written.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the state of the resources", e);
+        }
+        return false;
+    }
+
+    @Nonnull
+    private synchronized ExecutorService getStateWriter() {
+        if(stateWriter == null) {
+            stateWriter = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "LockableResourcesManager.stateWriter"));
+        }
+        return stateWriter;
+    }
+
+    /**
+     * Close the store once the writes queued so far have been run
+     *
+     * @param closed
+     *
+     * @return The close
+     */
+    @Nonnull
+    private synchronized Future<?> submitClose(@Nonnull final ResourcesStateStore closed) {
+        return getStateWriter().submit(new Runnable() {
+            @Override
+            public void run() {
+                closed.close();
+            }
+        });
+    }
+
+    /**
+     * Switch to the store selected by the configuration: the whole state is written to the
+     * current store (so that it is complete if selected again) and to the new one
+     */
+    private void updateStore() {
+        if(store == null) {
+            // Not loaded yet
+            return;
+        }
+        ResourcesStateStore newStore = ResourcesStateStore.get(stateStore, Boolean.TRUE.equals(useJournal));
+        if(newStore.equals(store)) {
+            return;
+        }
+        for(LockableResource r : resources) {
+            store.resourceChanged(r);
+        }
+        store.contextsChanged();
+        submitWrite();
+        submitClose(store);
+        store = newStore;
+        submitWrite();
+    }
+
+    /**
+     * Do not lose pending modifications on shutdown
+     */
+    @Terminator
+    public static void flushOnShutdown() {
+        LockableResourcesManager manager = get();
+        manager.flush();
+        Future<?> closed;
+        synchronized(manager) {
+            closed = manager.submitClose(manager.store);
+        }
+        try {
+            closed.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to close the state of the resources", e);
+        }
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "External Resources";
+    }
+
+    public static Set<LockableResource> filterFreeResources(Collection<LockableResource> resources, @Nullable String userId) {
+        HashSet<LockableResource> free = new HashSet<>();
+        for(LockableResource r : resources) {
+            if(r.isFree(userId)) {
+                free.add(r);
+            }
+        }
+        return free;
+    }
+
+    /**
+     * @param resources
+     * @param userId
+     *
+     * @return The number of resources free for this user, as of the last published snapshot
+     */
+    public int getFreeAmount(Collection<LockableResource> resources, @Nullable String userId) {
+        ResourcesSnapshot current = snapshot;
+        int free = 0;
+        for(LockableResource r : resources) {
+            if(current.isFree(r, userId)) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    public int getFreeAmount(String labels, @Nullable EnvVars env, @Nullable String userId) {
+        ResourcesSnapshot current = snapshot;
+        BitSet bits = current.getResourcesBitsFromCapabilities(ResourceCapability.splitCapabilities(labels), null, env);
+        int free = 0;
+        for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            if(current.isFree(current.getResourcesByIndex().get(i), userId)) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    public Set<String> getAllResourceNames() {
+        return new HashSet<>(snapshot.getResourcesByName().keySet());
+    }
+
+    @CheckForNull
+    public Set<LockableResource> getResourcesFromNames(@Nonnull Collection<String> resourceNames) {
+        Map<String, LockableResource> byName = snapshot.getResourcesByName();
+        LinkedHashSet<LockableResource> res = new LinkedHashSet<>(); // keep same ordering as input
+        for(String name : resourceNames) {
+            LockableResource r = byName.get(name);
+            if(r == null) {
+                LOGGER.info("Unknown resources names: " + getInvalidResourceNames(resourceNames));
+                return null; // At least one resource name is unknown
+            }
+            res.add(r);
+        }
+        return res;
+    }
+
+    public LockableResource getResourceFromName(String resourceName) {
+        if(resourceName == null) {
+            return null;
+        }
+        return snapshot.getResourcesByName().get(resourceName);
+    }
+
+    public Set<String> getInvalidResourceNames(@Nonnull Collection<String> resourceNames) {
+        Map<String, LockableResource> byName = snapshot.getResourcesByName();
+        LinkedHashSet<String> buffer = new LinkedHashSet<>();
+        for(String name : resourceNames) {
+            if(!byName.containsKey(name)) {
+                buffer.add(name);
+            }
+        }
+        return buffer; // Empty if all resource names are known
+    }
+
+    public synchronized Set<LockableResource> getQueuedResourcesFromProject(String projectFullName) {
+        Set<LockableResource> matching = new HashSet<>();
+        Map<Long, Set<LockableResource>> items = queuedResourcesByProject.get(projectFullName);
+        if(items != null) {
+            for(Map.Entry<Long, Set<LockableResource>> item : items.entrySet()) {
+                for(LockableResource r : item.getValue()) {
+                    if(r.isQueuedByTask(item.getKey()) && projectFullName.equals(r.getQueueItemProject())) {
+                        matching.add(r);
+                    }
+                }
+            }
+        }
+        return matching;
+    }
+
+    // Adds already selected (in previous queue round) resources to 'selected'
+    private synchronized Set<LockableResource> getQueuedResources(String projectFullName, long taskId) {
+        Set<LockableResource> queued = getQueuedItems(projectFullName).get(taskId);
+        if(queued == null) {
+            return new HashSet<>();
+        }
+        // this item has queued these resources earlier
+        return new HashSet<>(queued);
+    }
+
+    public synchronized Set<LockableResource> getLockedResourcesFromBuild(Run<?, ?> build) {
+        Set<LockableResource> matching = new HashSet<>();
+        Set<LockableResource> locked = lockedResourcesByBuild.get(build.getExternalizableId());
+        if(locked != null) {
+            for(LockableResource r : locked) {
+                if(r.isLockedByBuild(build)) {
+                    matching.add(r);
+                }
+            }
+        }
+        return matching;
+    }
+
+    public Boolean isValidLabel(String singleLabel, boolean acceptResourceName) {
+        if(singleLabel.startsWith("$")) {
+            return true;
+        }
+        ResourcesSnapshot current = snapshot;
+        if(acceptResourceName && current.getResourcesByName().containsKey(singleLabel)) {
+            return true;
+        }
+        return current.getLabels().contains(new ResourceCapability(singleLabel));
+    }
+
+    public Set<String> getAllLabels(boolean withResourceNames) {
+        ResourcesSnapshot current = snapshot;
+        TreeSet<String> labels = new TreeSet<>();
+        for(ResourceCapability capability : current.getLabels()) {
+            labels.add(capability.getName());
+        }
+        if(withResourceNames) {
+            labels.addAll(current.getResourcesByName().keySet());
+        }
+        return labels;
+    }
+
+    /**
+     * Get the amount of resources per state for a single capability
+     *
+     * @param label A single label
+     *
+     * @return A copy of the counters, or null if no resource has this label
+     */
+    @CheckForNull
+    public CapabilityStatus getCapabilityStatus(String label) {
+        CapabilityStatus status = snapshot.getCapabilitiesStatus().get(new ResourceCapability(label));
+        return (status == null) ? null : new CapabilityStatus(status);
+    }
+
+    /**
+     * @return A copy of the counters of all capabilities, sorted by name
+     */
+    @Nonnull
+    public List<CapabilityStatus> getCapabilitiesStatus() {
+        Collection<CapabilityStatus> current = snapshot.getCapabilitiesStatus().values();
+        List<CapabilityStatus> res = new ArrayList<>(current.size());
+        for(CapabilityStatus status : current) {
+            res.add(new CapabilityStatus(status));
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    public Set<ResourceCapability> getAllCapabilities() {
+        ResourcesSnapshot current = snapshot;
+        HashSet<ResourceCapability> capabilities = new HashSet<>(current.getLabels());
+        for(LockableResource r : current.getResourcesByIndex()) {
+            capabilities.add(r.getMyselfAsCapability());
+        }
+        return capabilities;
+    }
+
+    /**
+     *
+     * @param neededCapabilities
+     * @param prohibitedCapabilities
+     * @param env                    Used only for Groovy script execution
+     *
+     * @return
+     */
+    public Set<ResourceCapability> getCompatibleCapabilities(Collection<ResourceCapability> neededCapabilities, Collection<ResourceCapability> prohibitedCapabilities, @Nullable EnvVars env) {
+        ResourcesSnapshot current = snapshot;
+        TreeSet<ResourceCapability> capabilities = new TreeSet();
+        BitSet bits = current.getResourcesBitsFromCapabilities(neededCapabilities, prohibitedCapabilities, env);
+        for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            LockableResource r = current.getResourcesByIndex().get(i);
+            capabilities.addAll(r.getCapabilities());
+            capabilities.add(r.getMyselfAsCapability());
+        }
+        return capabilities;
+    }
+
+    /**
+     *
+     * @param neededCapabilities
+     * @param prohibitedCapabilities
      * @param env                    Used only for Groovy script execution
      *
      * @return
      */
-    public synchronized Set<LockableResource> getResourcesFromCapabilities(@Nullable Collection<ResourceCapability> neededCapabilities, @Nullable Collection<ResourceCapability> prohibitedCapabilities, @Nullable EnvVars env) {
-        HashSet<LockableResource> found = new HashSet<>();
-        for(LockableResource r : this.resources) {
-            if(r.hasCapabilities(neededCapabilities, prohibitedCapabilities, env)) {
-                found.add(r);
+    public Set<LockableResource> getResourcesFromCapabilities(@Nullable Collection<ResourceCapability> neededCapabilities, @Nullable Collection<ResourceCapability> prohibitedCapabilities, @Nullable EnvVars env) {
+        ResourcesSnapshot current = snapshot;
+        return current.getResourcesFromBits(current.getResourcesBitsFromCapabilities(neededCapabilities, prohibitedCapabilities, env));
+    }
+
+    @CheckForNull
+    public static RequiredResourcesProperty getProjectRequiredResourcesProperty(Job<?, ?> project) {
+        if(project instanceof MatrixConfiguration) {
+            project = (Job<?, ?>) project.getParent();
+        }
+        return project.getProperty(RequiredResourcesProperty.class);
+    }
+
+    @CheckForNull
+    public synchronized Set<LockableResource> selectFreeResources(@Nonnull Collection<RequiredResources> requiredResourcesList, @Nullable Collection<LockableResource> forcedFreeResources, @Nullable EnvVars env, @Nullable String userId) {
+        return selectResources(requiredResourcesList, true, forcedFreeResources, env, userId);
+    }
+
+    /**
+     * The resources are handled by their index: the candidates and the free resources are {@link BitSet}s,
+     * so the selection is made of word operations, without hashing the resources.
+     *
+     * @param requiredResourcesList
+     * @param onlyFreeResources
+     * @param forcedFreeResources   Resources considered as free
+     * @param env
+     * @param userId
+     *
+     * @return The selected resources, null if there are not enough (free) resources
+     */
+    @CheckForNull
+    public synchronized Set<LockableResource> selectResources(@Nonnull Collection<RequiredResources> requiredResourcesList, boolean onlyFreeResources, @Nullable Collection<LockableResource> forcedFreeResources, @Nullable EnvVars env, @Nullable String userId) {
+        ResourcesSnapshot current = snapshot;
+        BitSet free = onlyFreeResources ? getFreeResourcesBits(userId, forcedFreeResources) : null;
+        BitSet res = new BitSet();
+        //--------------
+        // Add resources by names
+        //--------------
+        for(RequiredResources rr : requiredResourcesList) {
+            for(String name : rr.getResourceNamesList(env)) {
+                LockableResource r = resourcesByName.get(name);
+                if(r == null) {
+                    // At least one invalid resource name
+                    return null;
+                }
+                if((free != null) && !free.get(r.getIndex())) {
+                    // At least one resource not free
+                    return null;
+                }
+                res.set(r.getIndex());
+            }
+        }
+        //--------------
+        // Add resources by capabilities + quantity
+        //--------------
+        List<int[]> candidates = new ArrayList<>(requiredResourcesList.size());
+        List<Integer> quantities = new ArrayList<>(requiredResourcesList.size());
+        for(RequiredResources rr : requiredResourcesList) {
+            Set<ResourceCapability> capabilities = rr.getCapabilitiesList(env);
+            if(capabilities.size() > 0) {
+                BitSet all = current.getResourcesBitsFromCapabilities(capabilities, null, env);
+                all.andNot(res); // Already selected by names: can be re-use for capabilities selection
+                BitSet freeCandidates = all;
+                if(free != null) {
+                    freeCandidates = (BitSet) all.clone();
+                    freeCandidates.and(free);
+                }
+                if(rr.quantity <= 0) {
+                    // Note: freeCandidates is a subset of all the candidates
+                    if(freeCandidates.cardinality() == all.cardinality()) {
+                        // Use all resources of this type
+                        res.or(freeCandidates);
+                    } else {
+                        // At least one resource is locked/queued: exit
+                        return null;
+                    }
+                } else if(freeCandidates.cardinality() < rr.quantity) {
+                    // No enough free resources with given capabilities
+                    return null;
+                } else {
+                    candidates.add(useFairSelection ? sortResources(freeCandidates) : toIndexes(freeCandidates));
+                    quantities.add(rr.quantity);
+                }
+            }
+        }
+        if(!candidates.isEmpty()) {
+            int[] owner = match(candidates, quantities, resourcesByIndex.size());
+            if(owner == null) {
+                // No enough free resources with given capabilities
+                return null;
+            }
+            // Merge resources by names and by capabilities
+            for(int i = 0; i < owner.length; i++) {
+                if(owner[i] >= 0) {
+                    res.set(i);
+                }
+            }
+        }
+        Set<LockableResource> selected = new HashSet<>();
+        for(int i = res.nextSetBit(0); i >= 0; i = res.nextSetBit(i + 1)) {
+            selected.add(resourcesByIndex.get(i));
+        }
+        return selected;
+    }
+
+    /**
+     * @param userId
+     * @param forcedFreeResources Resources considered as free
+     *
+     * @return The resources that are not locked, queued or reserved (except for this user), by index
+     */
+    private BitSet getFreeResourcesBits(@Nullable String userId, @Nullable Collection<LockableResource> forcedFreeResources) {
+        BitSet free = (BitSet) availableResources.clone();
+        for(int i = exclusiveResources.nextSetBit(0); i >= 0; i = exclusiveResources.nextSetBit(i + 1)) {
+            if(free.get(i) && resourcesByIndex.get(i).isReserved(userId)) {
+                free.clear(i);
+            }
+        }
+        if(forcedFreeResources != null) {
+            for(LockableResource r : forcedFreeResources) {
+                if(isIndexed(r)) {
+                    free.set(r.getIndex());
+                }
+            }
+        }
+        return free;
+    }
+
+    private static int[] toIndexes(BitSet bits) {
+        int[] indexes = new int[bits.cardinality()];
+        int k = 0;
+        for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            indexes[k++] = i;
+        }
+        return indexes;
+    }
+
+    /**
+     * Resources sharing the same capabilities (signature), and how many of the resources having at least
+     * these capabilities (compatible resources) are free
+     */
+    private static final class Signature {
+        final int size;
+        final int total;
+        int free;
+
+        Signature(int size, int total, int free) {
+            this.size = size;
+            this.total = total;
+            this.free = free;
+        }
+    }
+
+    private static class CostComparator implements Comparator<Integer>, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final double[] costs;
+
+        CostComparator(double[] costs) {
+            this.costs = costs;
+        }
+
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return Double.compare(costs[o1], costs[o2]);
+        }
+    }
+
+    /**
+     * The cost of a resource is the scarcity of its signature: number of compatible resources
+     * that are not free (weighted), plus its number of capabilities.<br>
+     * The free counts are maintained as resources lock and unlock (see {@link #onFreeChanged}), so sorting
+     * is O(k log k) for k candidates.
+     *
+     * @param candidates Resources by index
+     *
+     * @return The indexes of the resources, best resources first
+     */
+    private int[] sortResources(BitSet candidates) {
+        if(fairnessStale) {
+            rebuildFairnessIndex();
+        }
+        int k = candidates.cardinality();
+        Integer[] indexes = new Integer[k];
+        double[] costs = new double[k];
+        int n = 0;
+        for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            costs[n] = getCost(i, k);
+            indexes[n] = n;
+            n++;
+        }
+        Arrays.sort(indexes, new CostComparator(costs));
+        int[] resourceIndexes = toIndexes(candidates);
+        int[] sorted = new int[k];
+        boolean log = LOGGER.isLoggable(Level.FINER);
+        if(log) {
+            LOGGER.finer("Costs for using resources:");
+        }
+        for(int j = 0; j < k; j++) {
+            sorted[j] = resourceIndexes[indexes[j]];
+            if(log) {
+                LOGGER.finer(" - " + resourcesByIndex.get(sorted[j]).getName() + ": " + costs[indexes[j]]);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * @param index      Index of the resource
+     * @param candidates Number of candidates
+     *
+     * @return Cost of using the resource, from the fair selection index (must be up to date)
+     */
+    private double getCost(int index, int candidates) {
+        Signature signature = signatureOfResource[index];
+        int nMax = Math.max(1, signature.total);
+        return (nMax - signature.free) * (candidates / nMax) + signature.size;
+    }
+
+    /**
+     * @param resource
+     * @param candidates Number of candidates
+     *
+     * @return Cost of using the resource for fair selection
+     */
+    synchronized double getFairSelectionCost(LockableResource resource, int candidates) {
+        if(fairnessStale) {
+            rebuildFairnessIndex();
+        }
+        return getCost(resource.getIndex(), candidates);
+    }
+
+    public synchronized LinkedHashSet<LockableResource> sortResources(Collection<LockableResource> resources, EnvVars env) {
+        BitSet candidates = new BitSet();
+        List<LockableResource> others = new ArrayList<>();
+        for(LockableResource r : resources) {
+            if(isIndexed(r)) {
+                candidates.set(r.getIndex());
+            } else {
+                others.add(r);
+            }
+        }
+        LinkedHashSet<LockableResource> res = new LinkedHashSet<>();
+        for(int i : sortResources(candidates)) {
+            res.add(resourcesByIndex.get(i));
+        }
+        res.addAll(others);
+        return res;
+    }
+
+    /**
+     * Compute the signatures of the resources, and the resources each resource is compatible with
+     */
+    private void rebuildFairnessIndex() {
+        int size = resourcesByIndex.size();
+        ResourcesSnapshot current = snapshot;
+        BitSet free = new BitSet(size);
+        free.set(0, size);
+        free.andNot(lockedResources);
+        free.andNot(reservedResources);
+        free.andNot(queuedResources);
+        Map<Set<ResourceCapability>, Signature> signatures = new HashMap<>();
+        signatureOfResource = new Signature[size];
+        signaturesByResource = new ArrayList<>(size);
+        for(int i = 0; i < size; i++) {
+            signaturesByResource.add(new ArrayList<Signature>(1));
+        }
+        for(int i = 0; i < size; i++) {
+            Set<ResourceCapability> capabilities = resourcesByIndex.get(i).getCapabilities();
+            Signature signature = signatures.get(capabilities);
+            if(signature == null) {
+                BitSet compatibles = current.getResourcesBitsFromCapabilities(capabilities, null, null);
+                BitSet compatibleFree = (BitSet) compatibles.clone();
+                compatibleFree.and(free);
+                signature = new Signature(capabilities.size(), compatibles.cardinality(), compatibleFree.cardinality());
+                for(int j = compatibles.nextSetBit(0); j >= 0; j = compatibles.nextSetBit(j + 1)) {
+                    signaturesByResource.get(j).add(signature);
+                }
+                signatures.put(capabilities, signature);
+            }
+            signatureOfResource[i] = signature;
+        }
+        fairnessStale = false;
+    }
+
+    /**
+     * Update the free counts of the signatures the resource is compatible with
+     *
+     * @param index
+     * @param free
+     */
+    private void onFreeChanged(int index, boolean free) {
+        if(fairnessStale || (index >= signaturesByResource.size())) {
+            return;
+        }
+        for(Signature signature : signaturesByResource.get(index)) {
+            signature.free += free ? 1 : -1;
+        }
+    }
+
+    /**
+     * Try to lock required resources.<br>
+     * If not possible, put context in queue for next try
+     *
+     * @param step
+     * @param context
+     *
+     * @return True if locked, False if queued for later
+     */
+    public synchronized boolean lockOrQueueForLater(LockStep step, StepContext context) {
+        Run<?, ?> run;
+        try {
+            run = context.get(Run.class);
+        } catch(IOException | InterruptedException ex) {
+            return false;
+        }
+        TaskListener listener;
+        try {
+            listener = context.get(TaskListener.class);
+        } catch(IOException | InterruptedException ex) {
+            listener = null;
+        }
+        EnvVars env = Utils.getEnvVars(run, listener);
+        Collection<RequiredResources> required = step.getRequiredResources();
+        String userId = Utils.getUserId(run);
+        Set<LockableResource> selected = selectFreeResources(required, null, env, userId);
+        if(isHeldBack(selected, getStarvingWaiter())) {
+            selected = null;
+        }
+        if(lock(selected, required, run, context, step.getInversePrecedence(), step.getVariable())) {
+            return true;
+        } else {
+            if(listener != null) {
+                listener.getLogger().println(step + " is locked, waiting...");
+            }
+            queueContext(context, step);
+            return false;
+        }
+    }
+
+    /**
+     * Try to lock the resource and return true if locked.
+     *
+     * @param resources
+     * @param build
+     * @param context
+     * @param requiredresources
+     * @param inversePrecedence
+     * @param variableName
+     *
+     * @return
+     */
+    public synchronized boolean lock(Collection<LockableResource> resources,
+            Collection<RequiredResources> requiredresources,
+            @Nonnull Run<?, ?> build, @Nullable StepContext context,
+            boolean inversePrecedence, @Nullable String variableName) {
+        if(resources == null) {
+            return false;
+        }
+        String userId = Utils.getUserId(build);
+        for(LockableResource r : resources) {
+            if(!r.canLock(userId)) {
+                // At least one resource is not available: abort lock process
+                unqueue(resources);
+                return false;
             }
         }
-        return found;
+        lockResources(resources, requiredresources, build, context, inversePrecedence, variableName);
+        publishSnapshot();
+        saveState();
+        return true;
     }
 
-    @CheckForNull
-    public static RequiredResourcesProperty getProjectRequiredResourcesProperty(Job<?, ?> project) {
-        if(project instanceof MatrixConfiguration) {
-            project = (Job<?, ?>) project.getParent();
+    /**
+     * Lock resources known to be available, without saving the state
+     */
+    private void lockResources(Collection<LockableResource> resources,
+            Collection<RequiredResources> requiredresources,
+            @Nonnull Run<?, ?> build, @Nullable StepContext context,
+            boolean inversePrecedence, @Nullable String variableName) {
+        LOGGER.info("Locking resources " + resources);
+        for(LockableResource r : resources) {
+            unqueueResource(r);
+            setBuild(r, build);
+        }
+        if(variableName != null) {
+            String lbl = Utils.getParameterValue(resources);
+            build.addAction(new ResourceVariableNameAction(new StringParameterValue(variableName, lbl)));
+        }
+        if(context != null) {
+            // since LockableResource contains transient variables, they cannot be correctly serialized
+            // hence we use their unique resource names
+            ArrayList<String> resourceNames = new ArrayList<>();
+            for(LockableResource resource : resources) {
+                resourceNames.add(resource.getName());
+            }
+            // Sort names for predictable logs (for tests)
+            Collections.sort(resourceNames);
+            LockStepExecution.proceed(resourceNames, requiredresources, context, inversePrecedence);
         }
-        return project.getProperty(RequiredResourcesProperty.class);
     }
 
-    @CheckForNull
-    public synchronized Set<LockableResource> selectFreeResources(@Nonnull Collection<RequiredResources> requiredResourcesList, @Nullable Collection<LockableResource> forcedFreeResources, @Nullable EnvVars env, @Nullable String userId) {
-        return selectResources(requiredResourcesList, true, forcedFreeResources, env, userId);
+    public synchronized void unlock(@Nonnull Collection<LockableResource> resourcesToUnLock) {
+        unlock(resourcesToUnLock, null, null, false);
+    }
+
+    public synchronized void unlock(@Nonnull Collection<LockableResource> resourcesToUnLock, @Nullable Run<?, ?> build) {
+        unlock(resourcesToUnLock, build, null, false);
+    }
+
+    public synchronized void unlock(@Nonnull Collection<LockableResource> resourcesToUnLock,
+            @Nullable Run<?, ?> build, @Nullable StepContext context,
+            boolean inversePrecedence) {
+        //--------------------------
+        // Free old resources no longer needed
+        //--------------------------
+        LOGGER.info("Unlocking resources " + resourcesToUnLock);
+        if(build == null) {
+            for(LockableResource resource : resourcesToUnLock) {
+                if((resource != null) && resource.isLocked()) {
+                    // No more contexts, unlock resource
+                    unqueueResource(resource);
+                    setBuild(resource, null);
+                }
+            }
+        } else {
+            for(LockableResource resource : resourcesToUnLock) {
+                if((resource != null) && resource.isLockedByBuild(build)) {
+                    // No more contexts, unlock resource
+                    unqueueResource(resource);
+                    setBuild(resource, null);
+                }
+            }
+        }
+        publishSnapshot();
+        saveState();
+
+        //--------------------------
+        // Check if there are works waiting for resources
+        //--------------------------
+        resumeQueuedContext(inversePrecedence);
+    }
+
+    /**
+     * Resume all the waiting lock steps that can proceed, by priority then queue order (newest
+     * build first with inverse precedence), then save the state once.
+     *
+     * @param inversePrecedence
+     */
+    public synchronized void resumeQueuedContext(boolean inversePrecedence) {
+        boolean resumed = false;
+        Tuple2<ResourceWaiter, Set<LockableResource>> next;
+        while((next = getNextWaiter(inversePrecedence)) != null) {
+            //--------------------------
+            // Remove context from queue and process it
+            //--------------------------
+            QueuedContextStruct nextContext = next.getFirst().context;
+            removeQueuedContext(nextContext);
+            resumed = true;
+
+            //--------------------------
+            // Lock new resources
+            //--------------------------
+            LockStep step = nextContext.getStep();
+            Run<?, ?> nextBuild = nextContext.getBuild();
+            logWaitStatistics(nextContext);
+            if(nextBuild != null) {
+                lockResources(next.getSecond(), step.getRequiredResources(), nextBuild, nextContext.getContext(), step.getInversePrecedence(), step.getVariable());
+            }
+        }
+        publishSnapshot();
+        saveState();
+    }
+
+    private static void logWaitStatistics(QueuedContextStruct context) {
+        String message = "Resources obtained after waiting " + Util.getTimeSpanString(context.getWaitingTime())
+                + " (taken " + context.getOvertaken() + " times by other builds meanwhile)";
+        LOGGER.fine(context.getStep() + ": " + message);
+        try {
+            TaskListener listener = context.getContext().get(TaskListener.class);
+            if(listener != null) {
+                listener.getLogger().println(message);
+            }
+        } catch(IOException | InterruptedException ex) {
+            // No log for this build
+        }
     }
 
+    /**
+     * Only the waiters without missing resources are checked (see {@link ResourceWaiter}).<br>
+     * The resources held back for a starving waiter (see {@link #getStarvingWaiter()}) are left to it.
+     *
+     * @param inversePrecedence
+     *
+     * @return The next waiter which can proceed, with the selected resources
+     */
     @CheckForNull
-    public synchronized Set<LockableResource> selectResources(@Nonnull Collection<RequiredResources> requiredResourcesList, boolean onlyFreeResources, @Nullable Collection<LockableResource> forcedFreeResources, @Nullable EnvVars env, @Nullable String userId) {
-        Set<LockableResource> res = new HashSet<>();
-        //--------------
-        // Add resources by names
-        //--------------
-        for(RequiredResources rr : requiredResourcesList) {
-            Set<LockableResource> myResources = rr.getResourcesList(env);
-            if(myResources == null) {
-                // At least one invalid resource name
-                return null;
+    private Tuple2<ResourceWaiter, Set<LockableResource>> getNextWaiter(boolean inversePrecedence) {
+        if(waitIndexStale) {
+            rebuildWaitIndex();
+        }
+        ResourceWaiter starving = getStarvingWaiter();
+        for(ResourceWaiter waiter : inversePrecedence ? readyWaitersNewestFirst : readyWaiters) {
+            if(inversePrecedence && (waiter.started <= 0)) {
+                // No build (anymore)
+                continue;
             }
-            if(onlyFreeResources) {
-                for(LockableResource r : myResources) {
-                    if(r.isFree(userId) || ((forcedFreeResources != null) && forcedFreeResources.contains(r))) {
-                        // Resource can be used (free or allowed)
-                        res.add(r);
+            Set<LockableResource> selected = selectFreeResources(waiter.context.getStep().getRequiredResources(), null, waiter.env, waiter.userId);
+            if((selected != null) && ((waiter == starving) || !isHeldBack(selected, starving))) {
+                return new Tuple2<>(waiter, selected);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return {@link #starvingWaiter}, once the wait index is up to date
+     */
+    @CheckForNull
+    private ResourceWaiter getStarvingWaiter() {
+        if((starvationMinutes == null) || (starvationMinutes <= 0)) {
+            return null;
+        }
+        if(waitIndexStale) {
+            rebuildWaitIndex();
+        }
+        return starvingWaiter;
+    }
+
+    /**
+     * Find the oldest waiter which has waited for more than {@link #starvationMinutes} and can proceed some day,
+     * and schedule the next check for the oldest waiter which has not waited that long yet.<br>
+     * The selection version is incremented when it changes: {@link #publishSnapshot()} must be called by the caller
+     * (the timer publishes it itself).
+     */
+    private void updateStarvingWaiter() {
+        if(waitIndexStale) {
+            // Updated once the index is rebuilt
+            return;
+        }
+        int minutes = (starvationMinutes == null) ? 0 : starvationMinutes;
+        long now = System.currentTimeMillis();
+        ResourceWaiter starving = null;
+        long next = 0;
+        if(minutes > 0) {
+            long delay = TimeUnit.MINUTES.toMillis(minutes);
+            for(ResourceWaiter waiter : waitersBySeniority) {
+                if(waiter.isSatisfiable()) {
+                    if(waiter.context.getQueuedSince() + delay <= now) {
+                        starving = waiter;
                     } else {
-                        // At least one resource not free
-                        return null;
+                        next = waiter.context.getQueuedSince() + delay;
                     }
+                    break;
                 }
-            } else {
-                res.addAll(myResources);
             }
         }
-        //--------------
-        // Add resources by capabilities + quantity
-        //--------------
-        List<Tuple2<Set<LockableResource>, Integer>> request = new ArrayList<>(requiredResourcesList.size());
-        for(RequiredResources rr : requiredResourcesList) {
-            Set<ResourceCapability> capabilities = rr.getCapabilitiesList(env);
-            if(capabilities.size() > 0) {
-                Set<LockableResource> candidates = getResourcesFromCapabilities(capabilities, null, env);
-                candidates.removeAll(res); // Already selected by names: can be re-use for capabilities selection
-                Set<LockableResource> freeCandidates;
-                if(onlyFreeResources) {
-                    freeCandidates = filterFreeResources(candidates, userId);
-                    if(forcedFreeResources != null) {
-                        freeCandidates.addAll(forcedFreeResources);
-                        freeCandidates.retainAll(candidates);
+        QueuedContextStruct before = (starvingWaiter == null) ? null : starvingWaiter.context;
+        QueuedContextStruct after = (starving == null) ? null : starving.context;
+        if(after != before) {
+            if(after != null) {
+                LOGGER.info(after.getStep() + " has waited for " + Util.getTimeSpanString(after.getWaitingTime())
+                        + ": holding back the resources it may use");
+            }
+            selectionChanged = true;
+        }
+        starvingWaiter = starving;
+        scheduleStarvationTask(next);
+    }
+
+    /**
+     * @param time Next check of the starving waiter, 0 if none
+     */
+    private void scheduleStarvationTask(final long time) {
+        if((starvationTask != null) && (starvationTaskTime == time)) {
+            return;
+        }
+        if(starvationTask != null) {
+            starvationTask.cancel(false);
+            starvationTask = null;
+        }
+        if(time <= 0) {
+            return;
+        }
+        starvationTaskTime = time;
+        starvationTask = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(LockableResourcesManager.this) {
+                    if((starvationTask == null) || (starvationTaskTime != time)) {
+                        // Cancelled meanwhile
+                        return;
                     }
-                } else {
-                    freeCandidates = candidates;
-                }
-                if(rr.quantity <= 0) {
-                    // Note: freeCandidates.size() <= candidates.size()
-                    if(freeCandidates.size() == candidates.size()) {
-                        // Use all resources of this type
-                        res.addAll(freeCandidates);
+                    starvationTask = null;
+                    if(waitIndexStale) {
+                        rebuildWaitIndex();
                     } else {
-                        // At least one resource is locked/queued: exit
-                        return null;
+                        updateStarvingWaiter();
                     }
-                } else {
-                    if(useFairSelection) {
-                        // Sort resources
-                        freeCandidates = sortResources(freeCandidates, env);
-                    }
-                    request.add(new Tuple2<>(freeCandidates, rr.quantity));
+                    publishSnapshot();
                 }
             }
+        }, Math.max(0, time - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param selected
+     * @param starving
+     *
+     * @return True if a selected resource is held back for the starving waiter
+     */
+    private static boolean isHeldBack(@CheckForNull Set<LockableResource> selected, @CheckForNull ResourceWaiter starving) {
+        if((selected == null) || (starving == null)) {
+            return false;
         }
-        Set<LockableResource> selected = selectAmongPossibilities(request);
-        if(selected == null) {
-            // No enough free resources with given capabilities
-            return null;
+        BitSet held = starving.getCandidates();
+        for(LockableResource r : selected) {
+            if(held.get(r.getIndex())) {
+                return true;
+            }
         }
-        // Merge resources by names and by capabilities
-        res.addAll(selected);
-        return res;
+        return false;
     }
 
-    private static class SortComparator implements Comparator<Tuple2<LockableResource, Double>>, Serializable {
+    /**
+     * Oldest first
+     */
+    private static class SeniorityComparator implements Comparator<ResourceWaiter>, Serializable {
         private static final long serialVersionUID = 1L;
 
         @Override
-        public int compare(Tuple2<LockableResource, Double> o1, Tuple2<LockableResource, Double> o2) {
-            return o1.getSecond().compareTo(o2.getSecond());
+        public int compare(ResourceWaiter o1, ResourceWaiter o2) {
+            int c = Long.compare(o1.context.getQueuedSince(), o2.context.getQueuedSince());
+            return (c != 0) ? c : Long.compare(o1.arrival, o2.arrival);
         }
     }
 
-    public synchronized LinkedHashSet<LockableResource> sortResources(Collection<LockableResource> resources, EnvVars env) {
-        // Extract the best resources based on their capabilities
-        List<Tuple2<LockableResource, Double>> sortedFree = new ArrayList<>(); // (resource, cost)
-        for(LockableResource r : resources) {
-            Set<ResourceCapability> rc = r.getCapabilities();
-            Set<LockableResource> compatibles = getResourcesFromCapabilities(rc, null, env);
-            int nFree = getFreeAmount(compatibles, null);
-            int nMax = compatibles.size(); // >=1
-            double cost = (nMax - nFree) * (resources.size() / nMax) + rc.size();
-            sortedFree.add(new Tuple2<>(r, cost));
-        }
-        Collections.sort(sortedFree, new SortComparator());
-        LOGGER.finer("Costs for using resources:");
-        LinkedHashSet<LockableResource> res = new LinkedHashSet();
-        for(Tuple2<LockableResource, Double> t : sortedFree) {
-            res.add(t.getFirst());
-            LOGGER.info(" - " + t.getFirst().getName() + ": " + t.getSecond());
+    /**
+     * Highest priority first, then queue order
+     */
+    private static class WaiterComparator implements Comparator<ResourceWaiter>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int compare(ResourceWaiter o1, ResourceWaiter o2) {
+            int c = Integer.compare(o2.priority, o1.priority);
+            return (c != 0) ? c : Long.compare(o1.arrival, o2.arrival);
         }
-        return res;
     }
 
     /**
-     * Try to lock required resources.<br>
-     * If not possible, put context in queue for next try
+     * Highest priority first, then newest build
+     */
+    private static class NewestWaiterComparator implements Comparator<ResourceWaiter>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int compare(ResourceWaiter o1, ResourceWaiter o2) {
+            int c = Integer.compare(o2.priority, o1.priority);
+            if(c == 0) {
+                c = Long.compare(o2.started, o1.started);
+            }
+            return (c != 0) ? c : Long.compare(o1.arrival, o2.arrival);
+        }
+    }
+
+    private void rebuildWaitIndex() {
+        waiters = new HashMap<>();
+        waitersByName = new HashMap<>();
+        waitersByCapability = new HashMap<>();
+        unindexedWaiters = new HashSet<>();
+        readyWaiters.clear();
+        readyWaitersNewestFirst.clear();
+        waitersBySeniority.clear();
+        waitIndexStale = false;
+        for(QueuedContextStruct context : queuedContexts) {
+            indexWaiter(context);
+        }
+        updateStarvingWaiter();
+    }
+
+    /**
+     * Add a waiting lock step to the wait index
      *
-     * @param step
      * @param context
+     */
+    private void addWaiter(QueuedContextStruct context) {
+        if(waitIndexStale) {
+            // Will be indexed with the others
+            return;
+        }
+        indexWaiter(context);
+        updateStarvingWaiter();
+    }
+
+    /**
+     * Expand the requirements of the lock step and index it
      *
-     * @return True if locked, False if queued for later
+     * @param context
      */
-    public synchronized boolean lockOrQueueForLater(LockStep step, StepContext context) {
-        Run<?, ?> run;
-        try {
-            run = context.get(Run.class);
-        } catch(IOException | InterruptedException ex) {
-            return false;
+    private void indexWaiter(QueuedContextStruct context) {
+        EnvVars env = Utils.getEnvVars(context.getContext());
+        Run<?, ?> run = context.getBuild();
+        String userId = Utils.getUserId(run);
+        ResourcesSnapshot current = snapshot;
+        BitSet named = new BitSet();
+        List<ResourceWaiter.Group> groups = new ArrayList<>();
+        for(RequiredResources rr : context.getStep().getRequiredResources()) {
+            for(String name : rr.getResourceNamesList(env)) {
+                LockableResource r = resourcesByName.get(name);
+                if(r == null) {
+                    // Unknown resource: can not proceed
+                    named = null;
+                    break;
+                }
+                named.set(r.getIndex());
+            }
+            if(named == null) {
+                break;
+            }
+            Set<ResourceCapability> capabilities = rr.getCapabilitiesList(env);
+            if(!capabilities.isEmpty()) {
+                ResourceCapability key = null;
+                for(ResourceCapability capability : capabilities) {
+                    if(!capability.getName().startsWith(LockableResource.GROOVY_LABEL_MARKER)) {
+                        key = capability;
+                        break;
+                    }
+                }
+                int quantity = (rr.getQuantity() == null) ? 0 : rr.getQuantity();
+                groups.add(new ResourceWaiter.Group(current.getResourcesBitsFromCapabilities(capabilities, null, env), quantity, key));
+            }
         }
-        TaskListener listener;
-        try {
-            listener = context.get(TaskListener.class);
-        } catch(IOException | InterruptedException ex) {
-            listener = null;
+        Integer priority = context.getStep().getPriority();
+        ResourceWaiter waiter = new ResourceWaiter(context, waiterArrivals++, (priority == null) ? 0 : priority,
+                (run == null) ? 0 : run.getStartTimeInMillis(), env, userId, named);
+        if(named != null) {
+            waiter.groups.addAll(groups);
+            for(int i = named.nextSetBit(0); i >= 0; i = named.nextSetBit(i + 1)) {
+                addWaiter(waitersByName, resourcesByIndex.get(i).getName(), waiter);
+            }
+            for(ResourceWaiter.Group group : groups) {
+                if(group.key == null) {
+                    unindexedWaiters.add(waiter);
+                } else {
+                    addWaiter(waitersByCapability, group.key, waiter);
+                }
+            }
         }
-        EnvVars env = Utils.getEnvVars(run, listener);
-        Collection<RequiredResources> required = step.getRequiredResources();
-        String userId = Utils.getUserId(run);
-        Set<LockableResource> selected = selectFreeResources(required, null, env, userId);
-        if(lock(selected, required, run, context, step.getInversePrecedence(), step.getVariable())) {
-            return true;
-        } else {
-            if(listener != null) {
-                listener.getLogger().println(step + " is locked, waiting...");
+        waiters.put(context, waiter);
+        waitersBySeniority.add(waiter);
+        waiter.count(availableResources);
+        updateReady(waiter);
+    }
+
+    private static <K> void addWaiter(Map<K, Set<ResourceWaiter>> index, K key, ResourceWaiter waiter) {
+        Set<ResourceWaiter> set = index.get(key);
+        if(set == null) {
+            set = new HashSet<>();
+            index.put(key, set);
+        }
+        set.add(waiter);
+    }
+
+    private static <K> void removeWaiter(Map<K, Set<ResourceWaiter>> index, K key, ResourceWaiter waiter) {
+        Set<ResourceWaiter> set = index.get(key);
+        if(set != null) {
+            set.remove(waiter);
+            if(set.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private void removeWaiter(QueuedContextStruct context) {
+        ResourceWaiter waiter = waiters.remove(context);
+        if((waiter == null) || waitIndexStale) {
+            // The index will be rebuilt anyway
+            return;
+        }
+        if(waiter.named != null) {
+            for(int i = waiter.named.nextSetBit(0); i >= 0; i = waiter.named.nextSetBit(i + 1)) {
+                removeWaiter(waitersByName, resourcesByIndex.get(i).getName(), waiter);
+            }
+        }
+        for(ResourceWaiter.Group group : waiter.groups) {
+            if(group.key != null) {
+                removeWaiter(waitersByCapability, group.key, waiter);
             }
-            queueContext(context, step);
-            return false;
         }
+        unindexedWaiters.remove(waiter);
+        readyWaiters.remove(waiter);
+        readyWaitersNewestFirst.remove(waiter);
+        waitersBySeniority.remove(waiter);
+        updateStarvingWaiter();
+    }
+
+    private void removeQueuedContext(QueuedContextStruct context) {
+        queuedContexts.remove(context);
+        store.contextsChanged();
+        removeWaiter(context);
     }
 
     /**
-     * Try to lock the resource and return true if locked.
-     *
-     * @param resources
-     * @param build
-     * @param context
-     * @param requiredresources
-     * @param inversePrecedence
-     * @param variableName
+     * Update the counters of the waiters which may use this resource
      *
-     * @return
+     * @param resource
+     * @param available
      */
-    public synchronized boolean lock(Collection<LockableResource> resources,
-            Collection<RequiredResources> requiredresources,
-            @Nonnull Run<?, ?> build, @Nullable StepContext context,
-            boolean inversePrecedence, @Nullable String variableName) {
-        if(resources == null) {
-            return false;
+    private void onAvailabilityChanged(LockableResource resource, boolean available) {
+        if(waitIndexStale || waiters.isEmpty()) {
+            return;
         }
-        String userId = Utils.getUserId(build);
-        for(LockableResource r : resources) {
-            if(!r.canLock(userId)) {
-                // At least one resource is not available: abort lock process
-                unqueue(resources);
-                return false;
-            }
+        Set<ResourceWaiter> affected = new HashSet<>(unindexedWaiters);
+        addAll(affected, waitersByName.get(resource.getName()));
+        addAll(affected, waitersByCapability.get(resource.getMyselfAsCapability()));
+        for(ResourceCapability capability : resource.getCapabilities()) {
+            addAll(affected, waitersByCapability.get(capability));
         }
-        LOGGER.info("Locking resources " + resources);
-        for(LockableResource r : resources) {
-            r.unqueue();
-            r.setBuild(build);
+        for(ResourceWaiter waiter : affected) {
+            waiter.update(resource.getIndex(), available);
+            updateReady(waiter);
+            if(!available && waiter.getCandidates().get(resource.getIndex())) {
+                waiter.context.overtaken();
+            }
         }
-        if(variableName != null) {
-            String lbl = Utils.getParameterValue(resources);
-            build.addAction(new ResourceVariableNameAction(new StringParameterValue(variableName, lbl)));
+    }
+
+    private static void addAll(Set<ResourceWaiter> affected, @CheckForNull Set<ResourceWaiter> waiters) {
+        if(waiters != null) {
+            affected.addAll(waiters);
         }
-        if(context != null) {
-            // since LockableResource contains transient variables, they cannot be correctly serialized
-            // hence we use their unique resource names
-            ArrayList<String> resourceNames = new ArrayList<>();
-            for(LockableResource resource : resources) {
-                resourceNames.add(resource.getName());
-            }
-            // Sort names for predictable logs (for tests)
-            Collections.sort(resourceNames);
-            LockStepExecution.proceed(resourceNames, requiredresources, context, inversePrecedence);
+    }
+
+    private void updateReady(ResourceWaiter waiter) {
+        if(waiter.getMissing() == 0) {
+            readyWaiters.add(waiter);
+            readyWaitersNewestFirst.add(waiter);
+        } else {
+            readyWaiters.remove(waiter);
+            readyWaitersNewestFirst.remove(waiter);
         }
-        save();
-        return true;
     }
 
-    public synchronized void unlock(@Nonnull Collection<LockableResource> resourcesToUnLock) {
-        unlock(resourcesToUnLock, null, null, false);
+    /**
+     * Release the locks held by builds that do not exist anymore or are finished (deleted,
+     * aborted during shutdown, not resumed...), the queue holds of deleted projects and the
+     * lock steps of such builds, then resume the waiting lock steps.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void reconcileHeldBuilds() {
+        get().reconcile();
     }
 
-    public synchronized void unlock(@Nonnull Collection<LockableResource> resourcesToUnLock, @Nullable Run<?, ?> build) {
-        unlock(resourcesToUnLock, build, null, false);
+    /**
+     * {@link LockableResource#isLocked()} does not resolve the build holding the resource: a build removed
+     * without {@link org.jenkins.plugins.lockableresources.queue.LockRunListener} being notified (build directory
+     * deleted from the disk, killed executor...) would keep its resources until the next restart.<br>
+     * The builds holding resources are checked again periodically instead. Nothing is resolved when
+     * no resource is held.
+     */
+    @Extension
+    public static class ReconcileWork extends AsyncPeriodicWork {
+        public ReconcileWork() {
+            super("Lockable resources held by finished builds");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(RECONCILE_PERIOD);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            get().reconcile();
+        }
     }
 
-    public synchronized void unlock(@Nonnull Collection<LockableResource> resourcesToUnLock,
-            @Nullable Run<?, ?> build, @Nullable StepContext context,
-            boolean inversePrecedence) {
-        //--------------------------
-        // Free old resources no longer needed
-        //--------------------------
-        LOGGER.info("Unlocking resources " + resourcesToUnLock);
-        if(build == null) {
-            for(LockableResource resource : resourcesToUnLock) {
-                if((resource != null) && resource.isLocked()) {
-                    // No more contexts, unlock resource
-                    resource.unqueue();
-                    resource.setBuild(null);
+    /**
+     * The build references are resolved in parallel, outside of the manager lock.<br>
+     * Queue holds of existing projects are left to their timeout: on startup, the queue is not restored yet.
+     */
+    void reconcile() {
+        Set<String> buildIds;
+        final List<QueuedContextStruct> contexts;
+        boolean queued;
+        synchronized(this) {
+            buildIds = new HashSet<>(lockedResourcesByBuild.keySet());
+            contexts = new ArrayList<>(queuedContexts);
+            queued = !queuedResourcesByProject.isEmpty();
+        }
+        if(buildIds.isEmpty() && contexts.isEmpty() && !queued) {
+            return;
+        }
+        // Build id -> still running
+        Map<String, Future<Boolean>> builds = new HashMap<>();
+        List<Future<Boolean>> contextBuilds = new ArrayList<>();
+        ExecutorService executor = getReconcileExecutor();
+        try {
+            for(final String buildId : buildIds) {
+                builds.put(buildId, executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return isRunning(buildId);
+                    }
+                }));
+            }
+            for(final QueuedContextStruct context : contexts) {
+                contextBuilds.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException, InterruptedException {
+                        // Not context.getBuild(): a failed resolution must not be taken for a finished build
+                        Run<?, ?> run = context.getContext().get(Run.class);
+                        return (run != null) && run.isBuilding();
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RECONCILE_TIMEOUT);
+            Set<String> finishedBuilds = new HashSet<>();
+            for(Map.Entry<String, Future<Boolean>> e : builds.entrySet()) {
+                if(!isStillRunning(e.getValue(), deadline)) {
+                    finishedBuilds.add(e.getKey());
                 }
             }
-        } else {
-            for(LockableResource resource : resourcesToUnLock) {
-                if((resource != null) && resource.isLockedByBuild(build)) {
-                    // No more contexts, unlock resource
-                    resource.unqueue();
-                    resource.setBuild(null);
+            Set<QueuedContextStruct> finishedContexts = new HashSet<>();
+            for(int i = 0; i < contexts.size(); i++) {
+                if(!isStillRunning(contextBuilds.get(i), deadline)) {
+                    finishedContexts.add(contexts.get(i));
                 }
             }
+            release(finishedBuilds, finishedContexts);
+        } finally {
+            // Resolutions still running after the timeout
+            for(Future<Boolean> future : builds.values()) {
+                future.cancel(true);
+            }
+            for(Future<Boolean> future : contextBuilds) {
+                future.cancel(true);
+            }
         }
-        save();
-
-        //--------------------------
-        // Check if there are works waiting for resources
-        //--------------------------
-        resumeQueuedContext(inversePrecedence);
     }
 
-    public synchronized void resumeQueuedContext(boolean inversePrecedence) {
-        QueuedContextStruct nextContext = getNextQueuedContext(inversePrecedence);
-        if(nextContext == null) {
-            // no context is queued which can be started once these resources are free'd.
-            save();
-            return;
+    @Nonnull
+    private synchronized ExecutorService getReconcileExecutor() {
+        if(reconcileExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(RECONCILE_THREADS, RECONCILE_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "LockableResourcesManager.reconcile"));
+            executor.allowCoreThreadTimeOut(true);
+            reconcileExecutor = executor;
         }
+        return reconcileExecutor;
+    }
 
-        //--------------------------
-        // resourcesToUnLock: contains the previous resources (still locked).
-        // requiredResourceForNextContext: contains the resource objects which are required for the next context.
-        //--------------------------
-        EnvVars env = Utils.getEnvVars(nextContext.getContext());
-        LockStep step = nextContext.getStep();
-        Collection<RequiredResources> requiredResourcesForNextContext = step.getRequiredResources();
-        String userId = Utils.getUserId(nextContext.getBuild());
-        Set<LockableResource> resourcesForNextContext = selectFreeResources(requiredResourcesForNextContext, null, env, userId);
-        if(resourcesForNextContext != null) {
-            //--------------------------
-            // Remove context from queue and process it
-            //--------------------------
-            this.queuedContexts.remove(nextContext);
-
-            //--------------------------
-            // Lock new resources
-            //--------------------------
-            Run<?, ?> nextBuild = nextContext.getBuild();
-            StepContext nextContextContext = nextContext.getContext();
-            if(nextBuild != null) {
-                lock(resourcesForNextContext, requiredResourcesForNextContext, nextBuild, nextContextContext, step.getInversePrecedence(), step.getVariable());
-            }
+    /**
+     * @param future
+     * @param deadline
+     *
+     * @return false if the build is known to be finished or deleted
+     */
+    private static boolean isStillRunning(Future<Boolean> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch(InterruptedException | ExecutionException | TimeoutException e) {
+            // Unknown, keep it
+            LOGGER.log(Level.FINE, "Cannot resolve a build holding resources", e);
+            return true;
         }
-        save();
     }
 
-    private synchronized QueuedContextStruct getNextQueuedContext(boolean inversePrecedence) {
-        if(this.queuedContexts == null) {
-            return null;
+    private static boolean isRunning(String buildExternalizableId) {
+        try {
+            Run<?, ?> run = Run.fromExternalizableId(buildExternalizableId);
+            return (run != null) && run.isBuilding();
+        } catch(IllegalArgumentException e) {
+            // Invalid id
+            return false;
         }
-        QueuedContextStruct newestEntry = null;
-        if(!inversePrecedence) {
-            for(QueuedContextStruct context : this.queuedContexts) {
-                EnvVars env = Utils.getEnvVars(context.getContext());
-                LockStep step = context.getStep();
-                String userId = Utils.getUserId(context.getBuild());
-                if(selectFreeResources(step.getRequiredResources(), null, env, userId) != null) {
-                    return context;
+    }
+
+    private synchronized void release(Set<String> finishedBuilds, Set<QueuedContextStruct> finishedContexts) {
+        int released = 0;
+        for(String buildId : finishedBuilds) {
+            Set<LockableResource> locked = lockedResourcesByBuild.get(buildId);
+            if(locked != null) {
+                for(LockableResource resource : new ArrayList<>(locked)) {
+                    setBuild(resource, null);
+                    released++;
                 }
             }
-        } else {
-            long newest = 0;
-            for(QueuedContextStruct context : this.queuedContexts) {
-                EnvVars env = Utils.getEnvVars(context.getContext());
-                LockStep step = context.getStep();
-                String userId = Utils.getUserId(context.getBuild());
-                if(selectFreeResources(step.getRequiredResources(), null, env, userId) != null) {
-                    Run<?, ?> run = context.getBuild();
-                    if((run != null) && (run.getStartTimeInMillis() > newest)) {
-                        newest = run.getStartTimeInMillis();
-                        newestEntry = context;
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        for(String project : new ArrayList<>(queuedResourcesByProject.keySet())) {
+            if((jenkins != null) && (jenkins.getItemByFullName(project) == null)) {
+                for(Set<LockableResource> queued : new ArrayList<>(getQueuedItems(project).values())) {
+                    for(LockableResource resource : new ArrayList<>(queued)) {
+                        unqueueResource(resource);
+                        released++;
                     }
                 }
             }
         }
-        return newestEntry;
+        boolean contextsRemoved = false;
+        for(QueuedContextStruct context : finishedContexts) {
+            if(queuedContexts.contains(context)) {
+                removeQueuedContext(context);
+                contextsRemoved = true;
+            }
+        }
+        if((released == 0) && !contextsRemoved) {
+            return;
+        }
+        LOGGER.info("Released " + released + " resources held by finished builds or deleted projects, removed "
+                + finishedContexts.size() + " lock steps of finished builds");
+        // Published and saved once by resumeQueuedContext
+        resumeQueuedContext(false);
     }
 
     /**
@@ -696,6 +2412,8 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if(existent == null) {
             LockableResource resource = new LockableResource(name, capabilities);
             resources.add(resource);
+            indexResource(resource);
+            publishSnapshot();
             save();
             return true;
         }
@@ -709,15 +2427,18 @@ public class LockableResourcesManager extends GlobalConfiguration {
     public synchronized void reserve(List<LockableResource> resources, @Nullable String byUser, @Nullable String forUser, double hours) {
         for(LockableResource resource : resources) {
             resource.reserveFor(byUser, forUser, hours);
+            refreshState(resource);
         }
-        save();
+        publishSnapshot();
+        saveState();
     }
 
     public synchronized void unqueue(Collection<LockableResource> resources) {
         for(LockableResource resource : resources) {
-            resource.unqueue();
+            unqueueResource(resource);
         }
-        save();
+        publishSnapshot();
+        saveState();
 
         //--------------------------
         // Check if there are works waiting for resources
@@ -728,8 +2449,10 @@ public class LockableResourcesManager extends GlobalConfiguration {
     public synchronized void unreserve(Collection<LockableResource> resources) {
         for(LockableResource resource : resources) {
             resource.unReserve();
+            refreshState(resource);
         }
-        save();
+        publishSnapshot();
+        saveState();
 
         //--------------------------
         // Check if there are works waiting for resources
@@ -739,9 +2462,13 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
     public synchronized void reset(Collection<LockableResource> resources) {
         for(LockableResource resource : resources) {
+            unindexBuild(resource);
+            unindexQueued(resource);
             resource.reset();
+            refreshState(resource);
         }
-        save();
+        publishSnapshot();
+        saveState();
 
         //--------------------------
         // Check if there are works waiting for resources
@@ -764,6 +2491,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             }
             this.resources.clear();
             this.resources.addAll(newResources);
+            indexResources();
         } catch(JSONException e) {
             LOGGER.log(Level.SEVERE, "manager.configure()", e);
             return false;
@@ -786,12 +2514,46 @@ public class LockableResourcesManager extends GlobalConfiguration {
             LOGGER.log(Level.SEVERE, "manager.configure()", e);
             this.maxReservationHours = 72.0; //backward compatibility
         }
+        try {
+            this.saveDelay = Math.max(0, json.getInt("saveDelay"));
+        } catch(JSONException e) {
+            LOGGER.log(Level.SEVERE, "manager.configure()", e);
+            this.saveDelay = 0; //backward compatibility
+        }
+        try {
+            this.starvationMinutes = Math.max(0, json.getInt("starvationMinutes"));
+        } catch(JSONException e) {
+            LOGGER.log(Level.SEVERE, "manager.configure()", e);
+            this.starvationMinutes = 0; //backward compatibility
+        }
+        try {
+            this.useJournal = json.getBoolean("useJournal");
+        } catch(JSONException e) {
+            LOGGER.log(Level.SEVERE, "manager.configure()", e);
+            this.useJournal = false; //backward compatibility
+        }
+        try {
+            this.stateShards = Math.max(1, json.getInt("stateShards"));
+        } catch(JSONException e) {
+            LOGGER.log(Level.SEVERE, "manager.configure()", e);
+            this.stateShards = 1; //backward compatibility
+        }
+        try {
+            this.stateStore = json.getString("stateStore");
+        } catch(JSONException e) {
+            LOGGER.log(Level.SEVERE, "manager.configure()", e);
+            this.stateStore = XmlResourcesStateStore.ID; //backward compatibility
+        }
+        updateStore();
         try {
             setShowWidget(json.getBoolean("showWidget"));
         } catch(JSONException e) {
             LOGGER.log(Level.SEVERE, "manager.configure()", e);
             setShowWidget(true); //backward compatibility
         }
+        updateStarvingWaiter();
+        publishSnapshot();
+        saveState();
         save();
         return true;
     }
@@ -801,6 +2563,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
      * Get already queued item from the same project and build and try to complete the selection
      * If all required resources are not available, then previously queued items are released
      * <p>
+     * Resources that a blocked item with a higher priority may use are left to it
+     * (see {@link RequiredResourcesProperty#getPriority()}).
+     * <p>
      * Requires a queue item (for example with a build of a standard freestyle project)
      *
      * @param project
@@ -830,35 +2595,83 @@ public class LockableResourcesManager extends GlobalConfiguration {
         Set<LockableResource> alreadyQueued = getQueuedResources(projectFullName, taskId);
 
         LOGGER.finest(projectFullName + ": trying to get resources with these details: " + requiredResourcesList);
-        Set<LockableResource> selected = new HashSet<>(alreadyQueued);
+        int priority = (property.getPriority() == null) ? 0 : property.getPriority();
         String userId = Utils.getUserId(item);
-        selected = selectFreeResources(requiredResourcesList, selected, env, userId);
+        Set<LockableResource> selected = selectFreeResources(requiredResourcesList, new HashSet<>(alreadyQueued), env, userId);
+        if(isHigherPriorityItemBlocked(taskId, priority, selected)) {
+            LOGGER.log(Level.FINEST, "{0} leaves the resources to a blocked build with a higher priority.",
+                    new Object[] {projectFullName});
+            selected = null;
+        } else if(isHeldBack(selected, getStarvingWaiter())) {
+            LOGGER.log(Level.FINEST, "{0} leaves the resources to a starving lock step.",
+                    new Object[] {projectFullName});
+            selected = null;
+        }
 
         if(selected == null) {
             // No enough resources for this build: unqueue all associated resources
             for(LockableResource r : alreadyQueued) {
-                r.unqueue();
+                unqueueResource(r);
+            }
+            if(selectResources(requiredResourcesList, false, null, env, userId) != null) {
+                addBlockedItem(taskId, priority, getCandidateBits(requiredResourcesList, env));
+            } else {
+                // Not enough resources, even when they are all free
+                removeBlockedItem(taskId);
             }
         } else {
             // Resources for this build have been selected: queue all associated resources
             for(LockableResource r : selected) {
-                r.setQueued(taskId, projectFullName);
+                queueResource(r, taskId, projectFullName);
             }
+            removeBlockedItem(taskId);
         }
+        publishSnapshot();
         return selected;
     }
 
-    // Return false if another item queued for this project -> bail out
-    private synchronized boolean isAnotherBuildWaitingResources(String projectFullName, long taskId) {
-        for(LockableResource resource : resources) {
-            // This project might already have something in queue
-            String rProject = resource.getQueueItemProject();
-            if(rProject != null && rProject.equals(projectFullName)) {
-                if(!resource.isQueuedByTask(taskId)) {
-                    // The project has another buildable item waiting -> bail out
-                    LOGGER.log(Level.FINEST, "{0} has another build "
-                            + "that already queued resource {1}. Continue queueing.",
-                            new Object[] {projectFullName, resource});
+    /**
+     * @param requiredResourcesList
+     * @param env
+     *
+     * @return The resources that may be selected for these requirements
+     */
+    private BitSet getCandidateBits(Collection<RequiredResources> requiredResourcesList, @Nullable EnvVars env) {
+        BitSet candidates = new BitSet();
+        ResourcesSnapshot current = snapshot;
+        for(RequiredResources rr : requiredResourcesList) {
+            for(String name : rr.getResourceNamesList(env)) {
+                LockableResource r = resourcesByName.get(name);
+                if(r != null) {
+                    candidates.set(r.getIndex());
+                }
+            }
+            Set<ResourceCapability> capabilities = rr.getCapabilitiesList(env);
+            if(!capabilities.isEmpty()) {
+                candidates.or(current.getResourcesBitsFromCapabilities(capabilities, null, env));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @param taskId
+     * @param priority
+     * @param selected Resources the item would take, may be null
+     *
+     * @return true if a blocked item with a higher priority may use one of these resources
+     */
+    private boolean isHigherPriorityItemBlocked(long taskId, int priority, @Nullable Set<LockableResource> selected) {
+        if((selected == null) || blockedItemsByPriority.tailMap(priority, false).isEmpty()) {
+            return false;
+        }
+        BitSet bits = new BitSet();
+        for(LockableResource r : selected) {
+            bits.set(r.getIndex());
+        }
+        for(Map<Long, BitSet> items : blockedItemsByPriority.tailMap(priority, false).values()) {
+            for(Map.Entry<Long, BitSet> item : items.entrySet()) {
+                if((item.getKey() != taskId) && item.getValue().intersects(bits)) {
                     return true;
                 }
             }
@@ -866,6 +2679,66 @@ public class LockableResourcesManager extends GlobalConfiguration {
         return false;
     }
 
+    private void addBlockedItem(long taskId, int priority, BitSet candidates) {
+        Integer previous = blockedItemsPriority.put(taskId, priority);
+        if((previous != null) && (previous != priority)) {
+            removeBlockedItem(blockedItemsByPriority, previous, taskId);
+        }
+        if((previous == null) || (previous != priority)) {
+            // May block items with a lower priority
+            selectionChanged = true;
+        }
+        Map<Long, BitSet> items = blockedItemsByPriority.get(priority);
+        if(items == null) {
+            items = new HashMap<>();
+            blockedItemsByPriority.put(priority, items);
+        }
+        items.put(taskId, candidates);
+    }
+
+    private void removeBlockedItem(long taskId) {
+        Integer priority = blockedItemsPriority.remove(taskId);
+        if(priority != null) {
+            removeBlockedItem(blockedItemsByPriority, priority, taskId);
+            selectionChanged = true;
+        }
+    }
+
+    private static void removeBlockedItem(Map<Integer, Map<Long, BitSet>> index, int priority, long taskId) {
+        Map<Long, BitSet> items = index.get(priority);
+        if(items != null) {
+            items.remove(taskId);
+            if(items.isEmpty()) {
+                index.remove(priority);
+            }
+        }
+    }
+
+    /**
+     * Called when an item leaves the queue (started or cancelled)
+     *
+     * @param taskId
+     */
+    public synchronized void onQueueItemLeft(long taskId) {
+        removeBlockedItem(taskId);
+        publishSnapshot();
+    }
+
+    // Return false if another item queued for this project -> bail out
+    private synchronized boolean isAnotherBuildWaitingResources(String projectFullName, long taskId) {
+        // This project might already have something in queue
+        for(Map.Entry<Long, Set<LockableResource>> item : getQueuedItems(projectFullName).entrySet()) {
+            if(item.getKey() != taskId) {
+                // The project has another buildable item waiting -> bail out
+                LOGGER.log(Level.FINEST, "{0} has another build "
+                        + "that already queued resources {1}. Continue queueing.",
+                        new Object[] {projectFullName, item.getValue()});
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*
      * Adds the given context and the required resources to the queue if
      * this context is not yet queued.
@@ -876,15 +2749,23 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 return;
             }
         }
-        this.queuedContexts.add(new QueuedContextStruct(context, step));
-        save();
+        QueuedContextStruct queued = new QueuedContextStruct(context, step);
+        this.queuedContexts.add(queued);
+        store.contextsChanged();
+        addWaiter(queued);
+        publishSnapshot();
+        saveState();
     }
 
     public synchronized boolean unqueueContext(StepContext context) {
         for(Iterator<QueuedContextStruct> iter = this.queuedContexts.listIterator(); iter.hasNext();) {
-            if(iter.next().getContext() == context) {
+            QueuedContextStruct queued = iter.next();
+            if(queued.getContext() == context) {
                 iter.remove();
-                save();
+                store.contextsChanged();
+                removeWaiter(queued);
+                publishSnapshot();
+                saveState();
                 return true;
             }
         }
@@ -892,52 +2773,120 @@ public class LockableResourcesManager extends GlobalConfiguration {
     }
 
     /**
-     * Brute force recursive algorithm to find a set of resources matching the request
+     * Find a set of resources matching the request: each sub-request (candidates, quantity) gets its quantity
+     * of distinct candidates, a candidate being given to one sub-request at most.<br>
+     * This is a bipartite b-matching, solved with augmenting paths (Ford-Fulkerson) in
+     * O(quantities x sub-requests x candidates), instead of a search among all the combinations.
+     * <p>
+     * The candidates are preferred in their iteration order (see {@link #sortResources}): a sub-request
+     * takes its first free candidates, and another one is taken from another sub-request only when needed.
      *
      * @param <T>
      * @param request
      *
-     * @return
+     * @return The selected candidates, null if there is no solution
      */
+    @CheckForNull
     public static <T> Set<T> selectAmongPossibilities(List<Tuple2<Set<T>, Integer>> request) {
         //--------------------
-        // Easy case: solution found
+        // Index the candidates
         //--------------------
-        if(request.size() <= 0) {
-            return new HashSet<>();
+        Map<T, Integer> ids = new HashMap<>();
+        List<T> values = new ArrayList<>();
+        List<int[]> candidates = new ArrayList<>(request.size());
+        List<Integer> quantities = new ArrayList<>(request.size());
+        int needed = 0;
+        for(Tuple2<Set<T>, Integer> subRequest : request) {
+            int nb = subRequest.getSecond();
+            if(nb <= 0) {
+                // No resource needed
+                continue;
+            }
+            Set<T> subCandidates = subRequest.getFirst();
+            if(nb > subCandidates.size()) {
+                return null;
+            }
+            int[] c = new int[subCandidates.size()];
+            int k = 0;
+            for(T v : subCandidates) {
+                Integer id = ids.get(v);
+                if(id == null) {
+                    id = values.size();
+                    ids.put(v, id);
+                    values.add(v);
+                }
+                c[k++] = id;
+            }
+            candidates.add(c);
+            quantities.add(nb);
+            needed += nb;
         }
-        //--------------------
-        // Select first sub-request
-        // Try to select each candidate and perform recursive call with adapter request
-        //--------------------
-        Tuple2<Set<T>, Integer> subRequest = request.get(0);
-        Set<T> candidates = subRequest.getFirst();
-        int nb = subRequest.getSecond();
-        if(nb <= 0) {
-            // No resource needed: remove the sub-request and continue with others
-            List<Tuple2<Set<T>, Integer>> newRequest = new ArrayList<>(request);
-            newRequest.remove(subRequest);
-            return selectAmongPossibilities(newRequest);
-        } else if(nb <= candidates.size()) {
-            // Select each candidate, remove it from all other pools in subrequests, then perform recursive call
-            List<Tuple2<Set<T>, Integer>> newRequest = new ArrayList<>(request.size());
-            for(T v : candidates) {
-                newRequest.clear();
-                for(Tuple2<Set<T>, Integer> sr : request) {
-                    Set<T> newCandidates = new HashSet<>(sr.getFirst());
-                    newCandidates.remove(v);
-                    int newNb = ((sr == subRequest) ? nb - 1 : sr.getSecond());
-                    newRequest.add(new Tuple2<>(newCandidates, newNb));
-                }
-                Set<T> res = selectAmongPossibilities(newRequest);
-                if(res != null) {
-                    res.add(v);
-                    return res;
-                }
-            }
-        }
-        // No solution
-        return null;
+        if(needed > values.size()) {
+            return null;
+        }
+        int[] owner = match(candidates, quantities, values.size());
+        if(owner == null) {
+            return null;
+        }
+        Set<T> res = new HashSet<>();
+        for(int v = 0; v < owner.length; v++) {
+            if(owner[v] >= 0) {
+                res.add(values.get(v));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Give each sub-request its quantity, one candidate at a time
+     *
+     * @param candidates Candidates of each sub-request (in order of preference)
+     * @param quantities Quantity of each sub-request (at least 1)
+     * @param size       Candidates are in [0, size)
+     *
+     * @return Sub-request of each candidate (-1 if not selected), null if there is no solution
+     */
+    @CheckForNull
+    private static int[] match(List<int[]> candidates, List<Integer> quantities, int size) {
+        int[] owner = new int[size];
+        Arrays.fill(owner, -1);
+        for(int i = 0; i < candidates.size(); i++) {
+            for(int n = quantities.get(i); n > 0; n--) {
+                if(!augment(i, candidates, owner, new boolean[candidates.size()])) {
+                    return null;
+                }
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Give one more candidate to the sub-request, taking it from another sub-request
+     * (which then takes another candidate) if there is no free one
+     *
+     * @param i          Sub-request
+     * @param candidates Candidates of each sub-request
+     * @param owner      Sub-request of each candidate, -1 if free
+     * @param visited    Sub-requests already on the path
+     *
+     * @return False if no augmenting path
+     */
+    private static boolean augment(int i, List<int[]> candidates, int[] owner, boolean[] visited) {
+        visited[i] = true;
+        for(int v : candidates.get(i)) {
+            if(owner[v] < 0) {
+                owner[v] = i;
+                return true;
+            }
+        }
+        for(int v : candidates.get(i)) {
+            int j = owner[v];
+            if((j != i) && !visited[j] && augment(j, candidates, owner, visited)) {
+                owner[v] = i;
+                return true;
+            }
+        }
+        return false;
     }
 
     public static LockableResourcesManager get() {
@@ -0,0 +1,202 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import hudson.Extension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Embedded transactional store: the state is saved in a single MVStore (H2) file,
+ * each write being committed as a transaction.<br>
+ * Only the resources that are not free are stored (resource name -> state record,
+ * see {@link LockStateJournal#toRecord}), plus the lock steps serialized in XML.
+ */
+@Extension
+public class MVStoreResourcesStateStore extends ResourcesStateStore {
+    private static final Logger LOGGER = Logger.getLogger(MVStoreResourcesStateStore.class.getName());
+    public static final String ID = "mvstore";
+    private static final String FILE = "org.jenkins.plugins.lockableresources.LockableResourcesManager.mv.db";
+    private static final String RESOURCES = "resources";
+    private static final String QUEUE = "queue";
+    private static final String QUEUED_CONTEXTS = "queuedContexts";
+    /** Opened on first use, guarded by this */
+    private MVStore mvStore = null;
+    /** The content of the file is unknown (not written yet, closed, or failed write): everything is written */
+    private volatile boolean stale = true;
+    /**
+     * Resources whose state has changed since the last prepared write.<br>
+     * Guarded by the manager lock, not by this (held while writing).
+     */
+    private final Set<LockableResource> changed = new LinkedHashSet<>();
+    private boolean contextsChanged = false;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Embedded MVStore database";
+    }
+
+    @Override
+    public boolean isTransactional() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean load(LockableResourcesManager manager, Collection<LockableResource> resources, List<QueuedContextStruct> queuedContexts) {
+        if(!getFile().exists()) {
+            return false;
+        }
+        try {
+            MVStore s = open();
+            Map<String, LockableResource> byName = new HashMap<>();
+            for(LockableResource r : resources) {
+                byName.put(r.getName(), r);
+            }
+            MVMap<String, String> states = s.openMap(RESOURCES);
+            for(String record : states.values()) {
+                LockStateJournal.applyRecord(record, byName);
+            }
+            MVMap<String, String> queue = s.openMap(QUEUE);
+            String xml = queue.get(QUEUED_CONTEXTS);
+            if(xml != null) {
+                List<?> contexts = (List<?>) Jenkins.XSTREAM2.fromXML(xml);
+                queuedContexts.clear();
+                for(Object context : contexts) {
+                    queuedContexts.add((QueuedContextStruct) context);
+                }
+            }
+            return true;
+        } catch(RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Cannot read the state of the resources from " + getFile(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public void resourceChanged(LockableResource resource) {
+        changed.add(resource);
+    }
+
+    @Override
+    public void contextsChanged() {
+        contextsChanged = true;
+    }
+
+    @Override
+    public Write prepare(LockableResourcesManager manager, Collection<LockableResource> resources, List<QueuedContextStruct> queuedContexts) {
+        final boolean all = stale;
+        if(!all && changed.isEmpty() && !contextsChanged) {
+            return null;
+        }
+        // name -> record, null to remove the resource (free or deleted)
+        final Map<String, String> records = new LinkedHashMap<>();
+        if(all) {
+            for(LockableResource r : resources) {
+                records.put(r.getName(), LockStateJournal.isEmpty(r) ? null : LockStateJournal.toRecord(r));
+            }
+        } else {
+            for(LockableResource r : changed) {
+                if(resources.contains(r)) {
+                    records.put(r.getName(), LockStateJournal.isEmpty(r) ? null : LockStateJournal.toRecord(r));
+                } else if(!records.containsKey(r.getName())) {
+                    // Deleted (unless another resource has been created with the same name)
+                    records.put(r.getName(), null);
+                }
+            }
+        }
+        final List<QueuedContextStruct> contexts = (all || contextsChanged) ? new ArrayList<>(queuedContexts) : null;
+        stale = false;
+        changed.clear();
+        contextsChanged = false;
+        return new Write() {
+            @Override
+            public void run() throws IOException {
+                String xml = (contexts == null) ? null : Jenkins.XSTREAM2.toXML(contexts);
+                try {
+                    write(all, records, xml);
+                } catch(IOException | RuntimeException e) {
+                    stale = true;
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private synchronized void write(boolean all, Map<String, String> records, @CheckForNull String contexts) throws IOException {
+        MVStore s = open();
+        try {
+            MVMap<String, String> states = s.openMap(RESOURCES);
+            if(all) {
+                states.clear();
+            }
+            for(Map.Entry<String, String> e : records.entrySet()) {
+                if(e.getValue() == null) {
+                    states.remove(e.getKey());
+                } else {
+                    states.put(e.getKey(), e.getValue());
+                }
+            }
+            if(contexts != null) {
+                s.<String, String>openMap(QUEUE).put(QUEUED_CONTEXTS, contexts);
+            }
+            s.commit();
+        } catch(RuntimeException e) {
+            s.rollback();
+            throw new IOException("Cannot write the state of the resources to " + getFile(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        stale = true;
+        if(mvStore != null) {
+            try {
+                mvStore.close();
+            } catch(RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Cannot close " + getFile(), e);
+            }
+            mvStore = null;
+        }
+    }
+
+    @Nonnull
+    private MVStore open() {
+        if(mvStore == null) {
+            mvStore = new MVStore.Builder()
+                    .fileName(getFile().getPath())
+                    .autoCommitDisabled()
+                    .open();
+        }
+        return mvStore;
+    }
+
+    @Nonnull
+    private static File getFile() {
+        return new File(Jenkins.getInstance().getRootDir(), FILE);
+    }
+}
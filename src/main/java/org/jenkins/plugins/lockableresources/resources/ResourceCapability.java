@@ -6,11 +6,14 @@
  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 package org.jenkins.plugins.lockableresources.resources;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.util.ListBoxModel;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -18,6 +21,7 @@ import java.util.TreeSet;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
 import org.jenkins.plugins.lockableresources.Utils;
 import org.jenkins.plugins.lockableresources.jobParameter.LockableResourcesParameterDefinition;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -27,6 +31,11 @@ import org.kohsuke.stapler.export.Exported;
 
 public class ResourceCapability extends AbstractDescribableImpl<ResourceCapability> implements Comparable<ResourceCapability> {
     private static final Logger LOGGER = Logger.getLogger(LockableResourcesParameterDefinition.class.getName());
+    /**
+     * Canonical instances of the capabilities of the resources.<br>
+     * Weakly held: a capability is forgotten once no resource (or index) uses it anymore.
+     */
+    private static final Interner<ResourceCapability> INTERNER = Interners.newWeakInterner();
     @Exported
     protected String name;
 
@@ -66,9 +75,45 @@ public class ResourceCapability extends AbstractDescribableImpl<ResourceCapabili
     }
 
     private static String getSafeName(String name) {
+        if(name.indexOf("\\s") < 0) {
+            // Avoid the regex used by String.replace
+            return name;
+        }
         return name.replace("\\s", "_");
     }
 
+    /**
+     * Get the shared canonical instance of a capability
+     *
+     * @param name
+     *
+     * @return An immutable instance ({@link #setName} fails)
+     */
+    @Nonnull
+    public static ResourceCapability intern(@Nonnull String name) {
+        return INTERNER.intern(new Interned(getSafeName(name)));
+    }
+
+    /**
+     * Same as {@link #splitCapabilities(String)} but with canonical instances
+     *
+     * @param label
+     *
+     * @return An immutable set
+     */
+    @Nonnull
+    public static Set<ResourceCapability> splitInternedCapabilities(@Nullable String label) {
+        Set<String> labels = Utils.splitLabels(label);
+        if(labels.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<ResourceCapability> res = new HashSet<>(labels.size() * 2);
+        for(String l : labels) {
+            res.add(intern(l));
+        }
+        return Collections.unmodifiableSet(res);
+    }
+
     public static String createLabel(Collection<ResourceCapability> capabilities) {
         if(capabilities == null) {
             return "";
@@ -121,6 +166,25 @@ public class ResourceCapability extends AbstractDescribableImpl<ResourceCapabili
         return true;
     }
 
+    /**
+     * Shared canonical instance: can not be renamed
+     */
+    private static final class Interned extends ResourceCapability {
+        Interned(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setName(String name) {
+            throw new UnsupportedOperationException("Shared capability " + this.name + " can not be renamed");
+        }
+
+        @Override
+        public Descriptor<ResourceCapability> getDescriptor() {
+            return Jenkins.getInstance().getDescriptorOrDie(ResourceCapability.class);
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<ResourceCapability> {
         @Override
@@ -0,0 +1,160 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import hudson.EnvVars;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * A lock step waiting for resources, as indexed by {@link LockableResourcesManager}.<br>
+ * The requirements of the step are expanded once, and the number of missing resources is
+ * maintained as resources become available or not.
+ * <p>
+ * The resources are counted as available when not locked, not queued and not reserved (except
+ * for a given user, who may be the user of this step): the number of missing resources is a lower
+ * bound, 0 meaning that the step can probably proceed. The selection itself is still done by
+ * {@link LockableResourcesManager#selectFreeResources}.
+ */
+final class ResourceWaiter {
+    final QueuedContextStruct context;
+    /** Arrival order in the queue */
+    final long arrival;
+    /** Waiters with a higher priority proceed first */
+    final int priority;
+    /** Start time of the build, 0 if unknown (used with inverse precedence) */
+    final long started;
+    @CheckForNull
+    final EnvVars env;
+    @CheckForNull
+    final String userId;
+    /** Resources required by name, null if a name is unknown (the step can not proceed) */
+    @CheckForNull
+    final BitSet named;
+    private int namedUnavailable = 0;
+    final List<Group> groups = new ArrayList<>();
+    private BitSet candidates = null;
+
+    /**
+     * Resources required by capabilities
+     */
+    static final class Group {
+        final BitSet candidates;
+        final int size;
+        /** Number of resources needed, 0 for all the candidates */
+        final int quantity;
+        /** Capability the group is indexed with, null if it has only groovy expressions */
+        @CheckForNull
+        final ResourceCapability key;
+        int available = 0;
+
+        Group(@Nonnull BitSet candidates, int quantity, @CheckForNull ResourceCapability key) {
+            this.candidates = candidates;
+            this.size = candidates.cardinality();
+            this.quantity = quantity;
+            this.key = key;
+        }
+
+        int getMissing() {
+            return (quantity > 0) ? Math.max(0, quantity - available) : (size - available);
+        }
+    }
+
+    ResourceWaiter(@Nonnull QueuedContextStruct context, long arrival, int priority, long started,
+            @CheckForNull EnvVars env, @CheckForNull String userId, @CheckForNull BitSet named) {
+        this.context = context;
+        this.arrival = arrival;
+        this.priority = priority;
+        this.started = started;
+        this.env = env;
+        this.userId = userId;
+        this.named = named;
+    }
+
+    /**
+     * Set the initial counters
+     *
+     * @param availableResources
+     */
+    void count(@Nonnull BitSet availableResources) {
+        if(named != null) {
+            BitSet unavailable = (BitSet) named.clone();
+            unavailable.andNot(availableResources);
+            namedUnavailable = unavailable.cardinality();
+        }
+        for(Group group : groups) {
+            BitSet available = (BitSet) group.candidates.clone();
+            available.and(availableResources);
+            group.available = available.cardinality();
+        }
+    }
+
+    /**
+     * Update the counters
+     *
+     * @param index     Index of the resource
+     * @param available The resource has become available (or unavailable)
+     */
+    void update(int index, boolean available) {
+        int delta = available ? 1 : -1;
+        if((named != null) && named.get(index)) {
+            namedUnavailable -= delta;
+        }
+        for(Group group : groups) {
+            if(group.candidates.get(index)) {
+                group.available += delta;
+            }
+        }
+    }
+
+    /**
+     * @return False if the step can never proceed (unknown resource, not enough resources with the capabilities)
+     */
+    boolean isSatisfiable() {
+        if(named == null) {
+            return false;
+        }
+        for(Group group : groups) {
+            if(group.quantity > group.size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The resources the step may use
+     */
+    @Nonnull
+    BitSet getCandidates() {
+        if(candidates == null) {
+            candidates = (named == null) ? new BitSet() : (BitSet) named.clone();
+            for(Group group : groups) {
+                candidates.or(group.candidates);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return Lower bound of the number of resources missing to proceed, {@link Integer#MAX_VALUE} if never
+     */
+    int getMissing() {
+        if(named == null) {
+            return Integer.MAX_VALUE;
+        }
+        int missing = namedUnavailable;
+        for(Group group : groups) {
+            missing += group.getMissing();
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,173 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader of the configuration file of {@link LockableResourcesManager}.<br>
+ * Each resource is handed over as soon as it is parsed, without building the whole object tree
+ * of the file first (as XStream does).
+ * <p>
+ * Only the format written by the current version is supported: anything else (like the lock steps
+ * saved with the configuration by older versions) makes {@link #read} fail with an
+ * {@link UnsupportedFormatException}, and the file must then be read with XStream.
+ */
+public final class ResourcesConfigReader {
+    private static final String MANAGER = "LockableResourcesManager";
+    private static final String RESOURCE = "LockableResource";
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    public interface Handler {
+        void resource(@Nonnull LockableResource resource);
+
+        /**
+         * @param name  Field of the manager
+         * @param value
+         *
+         * @return false if the field is unknown
+         */
+        boolean field(@Nonnull String name, @Nonnull String value);
+    }
+
+    public static final class UnsupportedFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedFormatException(String message) {
+            super(message);
+        }
+    }
+
+    private ResourcesConfigReader() {
+    }
+
+    /**
+     * @param in
+     * @param handler
+     *
+     * @throws UnsupportedFormatException The file must be read with XStream
+     * @throws IOException
+     */
+    public static void read(@Nonnull InputStream in, @Nonnull Handler handler) throws IOException {
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                reader.nextTag();
+                if(!reader.getLocalName().endsWith(MANAGER)) {
+                    throw new UnsupportedFormatException("Unexpected root element " + reader.getLocalName());
+                }
+                while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if(name.equals("resources")) {
+                        readResources(reader, handler);
+                    } else {
+                        checkNoReference(reader);
+                        if(!handler.field(name, reader.getElementText())) {
+                            throw new UnsupportedFormatException("Unexpected element " + name);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch(XMLStreamException | NumberFormatException e) {
+            throw new UnsupportedFormatException(e.toString());
+        }
+    }
+
+    private static void readResources(XMLStreamReader reader, Handler handler) throws XMLStreamException, UnsupportedFormatException {
+        // The "class" attribute (implementation of the set) is ignored
+        if(reader.getAttributeValue(null, "reference") != null) {
+            throw new UnsupportedFormatException("Unexpected reference");
+        }
+        while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if(!reader.getLocalName().endsWith(RESOURCE)) {
+                throw new UnsupportedFormatException("Unexpected element " + reader.getLocalName());
+            }
+            checkNoReference(reader);
+            handler.resource(readResource(reader));
+        }
+    }
+
+    /**
+     * Same as {@link LockableResource.ConverterImpl#unmarshal}
+     */
+    private static LockableResource readResource(XMLStreamReader reader) throws XMLStreamException {
+        String name = reader.getAttributeValue(null, "name");
+        String labels = reader.getAttributeValue(null, "labels");
+        String description = reader.getAttributeValue(null, "description");
+        String buildExternalizableId = null;
+        long queueItemId = LockableResource.NOT_QUEUED;
+        String queueItemProject = null;
+        long queuingStarted = 0;
+        String reservedBy = null;
+        String reservedFor = null;
+        long reservedUntil = 0;
+        while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            // Text only elements: getElementText() fails on anything else
+            String node = reader.getLocalName();
+            if(node.equals("name")) {
+                name = reader.getElementText();
+            } else if(node.equals("labels")) {
+                labels = reader.getElementText();
+            } else if(node.equals("description")) {
+                description = reader.getElementText();
+            } else if(node.equals("buildExternalizableId")) {
+                buildExternalizableId = reader.getElementText();
+            } else if(node.equals("queueItemId")) {
+                queueItemId = Long.parseLong(reader.getElementText());
+            } else if(node.equals("queueItemProject")) {
+                queueItemProject = reader.getElementText();
+            } else if(node.equals("queuingStarted")) {
+                queuingStarted = Long.parseLong(reader.getElementText());
+            } else if(node.equals("reservedBy")) {
+                reservedBy = reader.getElementText();
+            } else if(node.equals("reservedFor")) {
+                reservedFor = reader.getElementText();
+            } else if(node.equals("reservedUntil")) {
+                reservedUntil = Long.parseLong(reader.getElementText());
+            } else {
+                // Like the deprecated queuedContexts, ignored
+                skipElement(reader);
+            }
+        }
+        return LockableResource.create(name, labels, description, buildExternalizableId, queueItemId, queueItemProject, queuingStarted,
+                reservedBy, reservedFor, reservedUntil);
+    }
+
+    /**
+     * XStream references (to objects read elsewhere in the file) can not be resolved by this reader
+     */
+    private static void checkNoReference(XMLStreamReader reader) throws UnsupportedFormatException {
+        if((reader.getAttributeValue(null, "reference") != null) || (reader.getAttributeValue(null, "class") != null)) {
+            throw new UnsupportedFormatException("Unexpected reference or class in " + reader.getLocalName());
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while(depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
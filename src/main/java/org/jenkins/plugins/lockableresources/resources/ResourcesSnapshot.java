@@ -0,0 +1,263 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import hudson.EnvVars;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Immutable view of the resources managed by {@link LockableResourcesManager}.<br>
+ * A new snapshot is published by the manager after each modification, so that
+ * readers (UI, REST API, form validation) never have to wait for the manager lock.
+ * <p>
+ * The snapshot freezes the set of resources, their indexes, the counters and which resources
+ * are free (see {@link #isFree}): readers must not use the state of the {@link LockableResource}
+ * itself, which is modified under the manager lock.
+ */
+final class ResourcesSnapshot {
+    static final ResourcesSnapshot EMPTY = new ResourcesSnapshot(0,
+            Collections.<LockableResource>emptyList(),
+            Collections.<String, LockableResource>emptyMap(),
+            Collections.<ResourceCapability, BitSet>emptyMap(),
+            Collections.<ResourceCapability, CapabilityStatus>emptyMap(),
+            new BitSet(), new BitSet());
+
+    private final long version;
+    private final Set<LockableResource> resources;
+    private final List<LockableResource> resourcesByIndex;
+    private final Map<String, LockableResource> resourcesByName;
+    private final Map<ResourceCapability, BitSet> resourcesByCapability;
+    private final Map<ResourceCapability, CapabilityStatus> capabilitiesStatus;
+    /** Resources not locked, not queued and not reserved (except for a given user), by index */
+    private final BitSet available;
+    /** Available resources reserved for a given user: index -> user */
+    private final Map<Integer, String> reservedFor;
+
+    /**
+     * Copy the given structures and states
+     *
+     * @param version
+     * @param resourcesByIndex
+     * @param resourcesByName
+     * @param resourcesByCapability
+     * @param capabilitiesStatus
+     * @param available             Resources not locked, not queued and not reserved (except for a given user)
+     * @param exclusive             Resources reserved for a given user
+     */
+    ResourcesSnapshot(long version, List<LockableResource> resourcesByIndex,
+            Map<String, LockableResource> resourcesByName,
+            Map<ResourceCapability, BitSet> resourcesByCapability,
+            Map<ResourceCapability, CapabilityStatus> capabilitiesStatus,
+            BitSet available, BitSet exclusive) {
+        this.version = version;
+        this.resourcesByIndex = Collections.unmodifiableList(new ArrayList<>(resourcesByIndex));
+        this.resources = Collections.unmodifiableSet(new LinkedHashSet<>(resourcesByIndex));
+        this.resourcesByName = Collections.unmodifiableMap(new HashMap<>(resourcesByName));
+        Map<ResourceCapability, BitSet> byCapability = new HashMap<>(resourcesByCapability.size() * 2);
+        for(Map.Entry<ResourceCapability, BitSet> entry : resourcesByCapability.entrySet()) {
+            byCapability.put(entry.getKey(), (BitSet) entry.getValue().clone());
+        }
+        this.resourcesByCapability = Collections.unmodifiableMap(byCapability);
+        this.capabilitiesStatus = copyStatus(capabilitiesStatus);
+        this.available = (BitSet) available.clone();
+        this.reservedFor = copyReservedFor(this.resourcesByIndex, available, exclusive);
+    }
+
+    /**
+     * Same resources, new states
+     *
+     * @param capabilitiesStatus null if the counters have not changed
+     */
+    private ResourcesSnapshot(long version, ResourcesSnapshot other, @Nullable Map<ResourceCapability, CapabilityStatus> capabilitiesStatus,
+            BitSet available, BitSet exclusive) {
+        this.version = version;
+        this.resources = other.resources;
+        this.resourcesByIndex = other.resourcesByIndex;
+        this.resourcesByName = other.resourcesByName;
+        this.resourcesByCapability = other.resourcesByCapability;
+        this.capabilitiesStatus = (capabilitiesStatus == null) ? other.capabilitiesStatus : copyStatus(capabilitiesStatus);
+        this.available = (BitSet) available.clone();
+        this.reservedFor = copyReservedFor(resourcesByIndex, available, exclusive);
+    }
+
+    private static Map<Integer, String> copyReservedFor(List<LockableResource> resourcesByIndex, BitSet available, BitSet exclusive) {
+        Map<Integer, String> res = new HashMap<>();
+        for(int i = exclusive.nextSetBit(0); i >= 0; i = exclusive.nextSetBit(i + 1)) {
+            if(available.get(i)) {
+                res.put(i, resourcesByIndex.get(i).getReservedFor());
+            }
+        }
+        return res;
+    }
+
+    private static Map<ResourceCapability, CapabilityStatus> copyStatus(Map<ResourceCapability, CapabilityStatus> capabilitiesStatus) {
+        Map<ResourceCapability, CapabilityStatus> res = new HashMap<>(capabilitiesStatus.size() * 2);
+        for(Map.Entry<ResourceCapability, CapabilityStatus> entry : capabilitiesStatus.entrySet()) {
+            res.put(entry.getKey(), new CapabilityStatus(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(res);
+    }
+
+    /**
+     * Same resources, new version
+     *
+     * @param capabilitiesStatus null if the counters have not changed
+     * @param available
+     * @param exclusive
+     */
+    ResourcesSnapshot withState(@Nullable Map<ResourceCapability, CapabilityStatus> capabilitiesStatus, BitSet available, BitSet exclusive) {
+        return new ResourcesSnapshot(version + 1, this, capabilitiesStatus, available, exclusive);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    @Nonnull
+    Set<LockableResource> getResources() {
+        return resources;
+    }
+
+    @Nonnull
+    List<LockableResource> getResourcesByIndex() {
+        return resourcesByIndex;
+    }
+
+    @Nonnull
+    Map<String, LockableResource> getResourcesByName() {
+        return resourcesByName;
+    }
+
+    @Nonnull
+    Set<ResourceCapability> getLabels() {
+        return resourcesByCapability.keySet();
+    }
+
+    @Nonnull
+    Map<ResourceCapability, CapabilityStatus> getCapabilitiesStatus() {
+        return capabilitiesStatus;
+    }
+
+    /**
+     * @param resource
+     * @param userId
+     *
+     * @return true if the resource was free for this user (not locked, not queued, not reserved
+     *         except for this user) when this snapshot was published
+     */
+    boolean isFree(@Nonnull LockableResource resource, @Nullable String userId) {
+        int i = resource.getIndex();
+        if((i < 0) || (i >= resourcesByIndex.size()) || (resourcesByIndex.get(i) != resource)) {
+            // Not managed
+            return resource.isFree(userId);
+        }
+        if(!available.get(i)) {
+            return false;
+        }
+        String user = reservedFor.get(i);
+        return (user == null) || user.equals(userId);
+    }
+
+    /**
+     * Get the indexes of the resources providing the given capability (label or resource name)
+     *
+     * @param capability
+     *
+     * @return The bits of matching resources. Must not be modified by the caller.
+     */
+    @Nonnull
+    BitSet getCapabilityBits(ResourceCapability capability) {
+        BitSet bits = resourcesByCapability.get(capability);
+        LockableResource named = resourcesByName.get(capability.getName());
+        if(named == null) {
+            return (bits == null) ? new BitSet() : bits;
+        }
+        BitSet res = (bits == null) ? new BitSet() : (BitSet) bits.clone();
+        res.set(named.getIndex());
+        return res;
+    }
+
+    /**
+     * Intersect the capability index to find the resources matching the request.<br>
+     * Groovy expressions can not be indexed: they are evaluated on the remaining candidates only.
+     *
+     * @param neededCapabilities
+     * @param prohibitedCapabilities
+     * @param env                    Used only for Groovy script execution
+     *
+     * @return Indexes of matching resources
+     */
+    @Nonnull
+    BitSet getResourcesBitsFromCapabilities(@Nullable Collection<ResourceCapability> neededCapabilities, @Nullable Collection<ResourceCapability> prohibitedCapabilities, @Nullable EnvVars env) {
+        BitSet found = new BitSet(resourcesByIndex.size());
+        found.set(0, resourcesByIndex.size());
+        List<String> neededExpressions = new ArrayList<>();
+        List<String> prohibitedExpressions = new ArrayList<>();
+        if(neededCapabilities != null) {
+            for(ResourceCapability capability : neededCapabilities) {
+                if(capability.getName().startsWith(LockableResource.GROOVY_LABEL_MARKER)) {
+                    neededExpressions.add(capability.getName());
+                } else {
+                    found.and(getCapabilityBits(capability));
+                    if(found.isEmpty()) {
+                        return found;
+                    }
+                }
+            }
+        }
+        if(prohibitedCapabilities != null) {
+            for(ResourceCapability capability : prohibitedCapabilities) {
+                if(capability.getName().startsWith(LockableResource.GROOVY_LABEL_MARKER)) {
+                    prohibitedExpressions.add(capability.getName());
+                } else {
+                    found.andNot(getCapabilityBits(capability));
+                }
+            }
+        }
+        if((env == null) || (neededExpressions.isEmpty() && prohibitedExpressions.isEmpty())) {
+            // Groovy expressions are ignored without environment
+            return found;
+        }
+        for(int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            LockableResource r = resourcesByIndex.get(i);
+            for(String expression : neededExpressions) {
+                if(!r.isValidLabel(expression, env)) {
+                    found.clear(i);
+                    break;
+                }
+            }
+            if(found.get(i)) {
+                for(String expression : prohibitedExpressions) {
+                    if(r.isValidLabel(expression, env)) {
+                        found.clear(i);
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    @Nonnull
+    Set<LockableResource> getResourcesFromBits(BitSet bits) {
+        LinkedHashSet<LockableResource> res = new LinkedHashSet<>(bits.cardinality() * 2);
+        for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            res.add(resourcesByIndex.get(i));
+        }
+        return res;
+    }
+}
@@ -0,0 +1,100 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Runtime state saved by {@link LockableResourcesManager} apart from its configuration:
+ * lock, queue and reservation of the resources (only the resources that are not free)
+ * and lock steps waiting for resources.<br>
+ * The state may be split into several files (shards), only one of them holding the lock steps.
+ */
+final class ResourcesState {
+    private final List<ResourceState> resources;
+    private final List<QueuedContextStruct> queuedContexts;
+
+    /**
+     * Copy the current state
+     *
+     * @param resources
+     * @param queuedContexts null if this state does not hold the lock steps
+     */
+    ResourcesState(@Nonnull Collection<LockableResource> resources, @CheckForNull Collection<QueuedContextStruct> queuedContexts) {
+        this.resources = new ArrayList<>();
+        for(LockableResource r : resources) {
+            ResourceState state = new ResourceState(r);
+            if(!state.isEmpty()) {
+                this.resources.add(state);
+            }
+        }
+        this.queuedContexts = (queuedContexts == null) ? null : new ArrayList<>(queuedContexts);
+    }
+
+    /**
+     * Apply the saved state to the resources loaded from the configuration
+     *
+     * @param resources
+     * @param queuedContexts Replaced by the saved lock steps (if this state holds them)
+     */
+    void restore(@Nonnull Collection<LockableResource> resources, @Nonnull Collection<QueuedContextStruct> queuedContexts) {
+        Map<String, LockableResource> byName = new HashMap<>();
+        for(LockableResource r : resources) {
+            byName.put(r.getName(), r);
+        }
+        if(this.resources != null) {
+            for(ResourceState state : this.resources) {
+                LockableResource r = byName.get(state.name);
+                if(r != null) {
+                    state.restore(r);
+                }
+            }
+        }
+        if(this.queuedContexts != null) {
+            queuedContexts.clear();
+            queuedContexts.addAll(this.queuedContexts);
+        }
+    }
+
+    private static final class ResourceState {
+        private final String name;
+        private final String buildExternalizableId;
+        private final long queueItemId;
+        private final String queueItemProject;
+        private final long queuingStarted;
+        private final String reservedBy;
+        private final String reservedFor;
+        private final long reservedUntil;
+
+        private ResourceState(LockableResource r) {
+            this.name = r.getName();
+            this.buildExternalizableId = r.getBuildExternalizableId();
+            this.queueItemId = r.getQueueItemId();
+            this.queueItemProject = r.getQueueItemProject();
+            this.queuingStarted = r.getQueuingStarted();
+            this.reservedBy = r.getReservedBy();
+            this.reservedFor = r.getReservedFor();
+            this.reservedUntil = r.getReservedUntil();
+        }
+
+        private boolean isEmpty() {
+            return (buildExternalizableId == null) && (queueItemId == LockableResource.NOT_QUEUED) && (queuingStarted == 0)
+                    && (reservedBy == null) && (reservedFor == null) && (reservedUntil == 0);
+        }
+
+        private void restore(LockableResource r) {
+            r.restoreState(buildExternalizableId, queueItemId, queueItemProject, queuingStarted, reservedBy, reservedFor, reservedUntil);
+        }
+    }
+}
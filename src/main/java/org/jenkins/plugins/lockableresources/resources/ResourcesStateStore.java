@@ -0,0 +1,136 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Storage of the runtime state of {@link LockableResourcesManager}:
+ * lock, queue and reservation of the resources, and lock steps waiting for resources.<br>
+ * The configuration of the resources is always saved by the manager itself.
+ * <p>
+ * The manager reports the modifications ({@link #resourceChanged}, {@link #contextsChanged}) and
+ * the store decides what to write: the state is copied by {@link #prepare} under the manager lock,
+ * and written by the returned {@link Write} outside of it. Writes are run one at a time, in the order
+ * they were prepared.
+ */
+public abstract class ResourcesStateStore implements ExtensionPoint {
+    /**
+     * @return Unique identifier of this store, saved in the configuration of the manager
+     */
+    @Nonnull
+    public abstract String getId();
+
+    @Nonnull
+    public abstract String getDisplayName();
+
+    /**
+     * Apply the saved state to the resources loaded from the configuration.<br>
+     * Called under the manager lock.
+     *
+     * @param manager
+     * @param resources
+     * @param queuedContexts Replaced by the saved lock steps
+     *
+     * @return false if this store has no saved state
+     */
+    public abstract boolean load(@Nonnull LockableResourcesManager manager, @Nonnull Collection<LockableResource> resources,
+            @Nonnull List<QueuedContextStruct> queuedContexts);
+
+    /**
+     * The state of the resource has changed, or the resource has been added or removed.<br>
+     * Called under the manager lock.
+     *
+     * @param resource
+     */
+    public abstract void resourceChanged(@Nonnull LockableResource resource);
+
+    /**
+     * The lock steps waiting for resources have changed. Called under the manager lock.
+     */
+    public abstract void contextsChanged();
+
+    /**
+     * Copy the state modified since the previous call (everything on the first call, or after
+     * a failed write). Called under the manager lock.
+     *
+     * @param manager
+     * @param resources      All the resources
+     * @param queuedContexts Lock steps waiting for resources
+     *
+     * @return The write of the copied state, null if there is nothing to write
+     */
+    @CheckForNull
+    public abstract Write prepare(@Nonnull LockableResourcesManager manager, @Nonnull Collection<LockableResource> resources,
+            @Nonnull List<QueuedContextStruct> queuedContexts);
+
+    /**
+     * @return true if each write is a small transaction: state transitions are then written
+     *         as they happen instead of being recorded in a journal (see {@link #get(String, boolean)})
+     */
+    public boolean isTransactional() {
+        return false;
+    }
+
+    /**
+     * Release the underlying storage (Jenkins shutdown or another store selected), once
+     * the prepared writes have been run. The store may be used again later: the whole
+     * state is then written by the next write.
+     */
+    public void close() {
+    }
+
+    public interface Write {
+        void run() throws IOException;
+    }
+
+    @Nonnull
+    public static ExtensionList<ResourcesStateStore> all() {
+        return ExtensionList.lookup(ResourcesStateStore.class);
+    }
+
+    /**
+     * @param id
+     *
+     * @return The store with this identifier, the default store (XML files) if not found
+     */
+    @Nonnull
+    public static ResourcesStateStore get(@CheckForNull String id) {
+        ResourcesStateStore fallback = null;
+        if(Jenkins.getInstance() != null) {
+            for(ResourcesStateStore store : all()) {
+                if(store.getId().equals(id)) {
+                    return store;
+                }
+                if(store instanceof XmlResourcesStateStore) {
+                    fallback = store;
+                }
+            }
+        }
+        return (fallback == null) ? new XmlResourcesStateStore() : fallback;
+    }
+
+    /**
+     * @param id
+     * @param journal Record the state transitions in a journal (ignored by transactional stores)
+     *
+     * @return The store with this identifier, decorated by {@link JournaledResourcesStateStore} if needed
+     */
+    @Nonnull
+    public static ResourcesStateStore get(@CheckForNull String id, boolean journal) {
+        ResourcesStateStore store = get(id);
+        return (journal && !store.isTransactional()) ? new JournaledResourcesStateStore(store) : store;
+    }
+}
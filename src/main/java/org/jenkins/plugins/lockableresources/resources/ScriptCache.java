@@ -0,0 +1,87 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Bounded cache of compiled Groovy label expressions.<br>
+ * Each expression is compiled once (in its own class loader, so that evicted
+ * classes can be collected), then a new script instance is created with a fresh
+ * {@link Binding} for each evaluation.
+ */
+final class ScriptCache {
+    private static final Logger LOGGER = Logger.getLogger(ScriptCache.class.getName());
+    /** Maximum number of distinct expressions kept compiled */
+    static final int MAX_SIZE = Integer.getInteger(ScriptCache.class.getName() + ".maxSize", 256);
+    private static final Map<String, CompiledScript> CACHE = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private ScriptCache() {
+    }
+
+    /**
+     * Compilation result: the script class or the compilation error (also cached,
+     * to avoid compiling again an invalid expression for each resource)
+     */
+    private static final class CompiledScript {
+        private final Class<? extends Script> scriptClass;
+        private final CompilationFailedException error;
+
+        private CompiledScript(Class<? extends Script> scriptClass, CompilationFailedException error) {
+            this.scriptClass = scriptClass;
+            this.error = error;
+        }
+    }
+
+    private static synchronized CompiledScript compile(String scriptText) {
+        CompiledScript compiled = CACHE.get(scriptText);
+        if(compiled == null) {
+            LOGGER.fine("Compiling groovy expression: " + scriptText);
+            try {
+                compiled = new CompiledScript(new GroovyShell().parse(scriptText).getClass(), null);
+            } catch(CompilationFailedException e) {
+                compiled = new CompiledScript(null, e);
+            }
+            CACHE.put(scriptText, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Create a new instance of the compiled script
+     *
+     * @param scriptText
+     * @param binding
+     *
+     * @return
+     *
+     * @throws CompilationFailedException
+     */
+    @Nonnull
+    static Script createScript(@Nonnull String scriptText, @Nonnull Binding binding) throws CompilationFailedException {
+        CompiledScript compiled = compile(scriptText);
+        if(compiled.error != null) {
+            throw compiled.error;
+        }
+        return InvokerHelper.createScript(compiled.scriptClass, binding);
+    }
+}
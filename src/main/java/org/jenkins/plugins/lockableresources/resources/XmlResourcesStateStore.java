@@ -0,0 +1,247 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.AtomicFileWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Default store: the state is saved in XML files next to the configuration of the manager,
+ * either a single file or several shards (see {@link LockableResourcesManager#getStateShards()}).
+ */
+@Extension(ordinal = 100)
+public class XmlResourcesStateStore extends ResourcesStateStore {
+    private static final Logger LOGGER = Logger.getLogger(XmlResourcesStateStore.class.getName());
+    public static final String ID = "xml";
+    private static final String STATE_FILE = "org.jenkins.plugins.lockableresources.LockableResourcesManager.state.xml";
+    private static final String SHARD_FILE_PREFIX = "org.jenkins.plugins.lockableresources.LockableResourcesManager.state.";
+    private static final Pattern SHARD_FILE_PATTERN = Pattern.compile(Pattern.quote(SHARD_FILE_PREFIX) + "(\\d{1,6})\\.xml");
+    /** Number of shards of the files on disk */
+    private int writtenShards = -1;
+    /** The content of the files on disk is unknown (not written yet, closed, or failed write): everything is written */
+    private volatile boolean stale = true;
+    /** Resources whose state has changed since the last prepared write */
+    private final Set<LockableResource> changed = new HashSet<>();
+    private boolean contextsChanged = false;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "XML files";
+    }
+
+    @Override
+    public synchronized boolean load(LockableResourcesManager manager, Collection<LockableResource> resources, List<QueuedContextStruct> queuedContexts) {
+        XmlFile stateFile = getStateFile();
+        if(!stateFile.exists()) {
+            return false;
+        }
+        try {
+            ((ResourcesState) stateFile.read()).restore(resources, queuedContexts);
+        } catch(IOException | ClassCastException e) {
+            LOGGER.log(Level.SEVERE, "Cannot read the state of the resources from " + stateFile, e);
+        }
+        int shards = getShardCount(manager);
+        for(File f : listShardFiles()) {
+            if((shards <= 1) || (getShardNumber(f) >= shards)) {
+                // Left by another number of shards, will be deleted by the next save
+                continue;
+            }
+            XmlFile shardFile = new XmlFile(Jenkins.XSTREAM2, f);
+            try {
+                ((ResourcesState) shardFile.read()).restore(resources, queuedContexts);
+            } catch(IOException | ClassCastException e) {
+                LOGGER.log(Level.SEVERE, "Cannot read the state of the resources from " + shardFile, e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void resourceChanged(LockableResource resource) {
+        changed.add(resource);
+    }
+
+    @Override
+    public synchronized void contextsChanged() {
+        contextsChanged = true;
+    }
+
+    @Override
+    public synchronized Write prepare(final LockableResourcesManager manager, Collection<LockableResource> resources,
+            List<QueuedContextStruct> queuedContexts) {
+        final int shards = getShardCount(manager);
+        final boolean resharded = (shards != writtenShards);
+        boolean all = stale || resharded;
+        if(!all && changed.isEmpty() && !contextsChanged) {
+            return null;
+        }
+        stale = false;
+        writtenShards = shards;
+        final Map<XmlFile, ResourcesState> states = new LinkedHashMap<>();
+        if(shards <= 1) {
+            states.put(getStateFile(), new ResourcesState(resources, queuedContexts));
+        } else {
+            BitSet dirty = new BitSet(shards);
+            for(LockableResource r : changed) {
+                dirty.set(getShard(r.getName(), shards));
+            }
+            if(all || !dirty.isEmpty()) {
+                List<List<LockableResource>> byShard = new ArrayList<>(shards);
+                for(int i = 0; i < shards; i++) {
+                    byShard.add(new ArrayList<LockableResource>());
+                }
+                for(LockableResource r : resources) {
+                    int i = getShard(r.getName(), shards);
+                    if(all || dirty.get(i)) {
+                        byShard.get(i).add(r);
+                    }
+                }
+                for(int i = 0; i < shards; i++) {
+                    if(all || dirty.get(i)) {
+                        states.put(getShardFile(i), new ResourcesState(byShard.get(i), null));
+                    }
+                }
+            }
+            if(all || contextsChanged) {
+                states.put(getStateFile(), new ResourcesState(Collections.<LockableResource>emptyList(), queuedContexts));
+            }
+        }
+        changed.clear();
+        contextsChanged = false;
+        return new Write() {
+            @Override
+            public void run() throws IOException {
+                try {
+                    for(Map.Entry<XmlFile, ResourcesState> e : states.entrySet()) {
+                        write(manager, e.getKey(), e.getValue());
+                    }
+                } catch(IOException | RuntimeException e) {
+                    // Some files may not have been written
+                    stale = true;
+                    throw e;
+                }
+                if(resharded) {
+                    deleteShardFiles(shards);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        // Files may have been modified by another store meanwhile
+        stale = true;
+    }
+
+    private static void write(LockableResourcesManager manager, XmlFile file, ResourcesState state) throws IOException {
+        String xml = file.getXStream().toXML(state);
+        AtomicFileWriter w = new AtomicFileWriter(file.getFile(), "UTF-8");
+        try {
+            w.write("<?xml version='1.1' encoding='UTF-8'?>\n");
+            w.write(xml);
+            w.commit();
+        } finally {
+            w.abort();
+        }
+        SaveableListener.fireOnChange(manager, file);
+    }
+
+    /**
+     * Delete the shard files that are not used with this number of shards
+     *
+     * @param shards
+     */
+    private static void deleteShardFiles(int shards) {
+        for(File f : listShardFiles()) {
+            if((shards <= 1) || (getShardNumber(f) >= shards)) {
+                if(!f.delete()) {
+                    LOGGER.warning("Cannot delete " + f);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The file of the runtime state (lock, queue and reservation of the resources, waiting lock steps)
+     */
+    @Nonnull
+    static XmlFile getStateFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), STATE_FILE));
+    }
+
+    /**
+     * @param i
+     *
+     * @return The file of the state of the resources of the shard (when there are several shards)
+     */
+    private static XmlFile getShardFile(int i) {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), SHARD_FILE_PREFIX + i + ".xml"));
+    }
+
+    private static List<File> listShardFiles() {
+        List<File> shardFiles = new ArrayList<>();
+        File[] files = Jenkins.getInstance().getRootDir().listFiles();
+        if(files != null) {
+            for(File f : files) {
+                if(getShardNumber(f) >= 0) {
+                    shardFiles.add(f);
+                }
+            }
+        }
+        return shardFiles;
+    }
+
+    /**
+     * @param f
+     *
+     * @return The shard number of the file, -1 if this is not a shard file
+     */
+    private static int getShardNumber(File f) {
+        Matcher m = SHARD_FILE_PATTERN.matcher(f.getName());
+        return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    /**
+     * @param name  Resource name
+     * @param count Number of shards
+     *
+     * @return The shard holding the state of the resource
+     */
+    private static int getShard(String name, int count) {
+        return (name.hashCode() & Integer.MAX_VALUE) % count;
+    }
+
+    private static int getShardCount(LockableResourcesManager manager) {
+        Integer shards = manager.getStateShards();
+        return ((shards == null) || (shards < 1)) ? 1 : shards;
+    }
+}
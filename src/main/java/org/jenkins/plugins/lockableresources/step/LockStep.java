@@ -26,6 +26,8 @@ public class LockStep extends AbstractStepImpl implements Serializable {
     protected Collection<RequiredResources> requiredResourcesList = new ArrayList<>();
     @Exported
     protected Boolean inversePrecedence = false; // Queue management: false = FIFO / true = LIFO
+    @Exported
+    protected Integer priority = 0; // Queue management: waiting steps with a higher priority get the lock first
     /** For backward compatibility. Please use {@link #requiredResourcesList} */
     @Deprecated
     private transient final String resource = null;
@@ -48,6 +50,16 @@ public class LockStep extends AbstractStepImpl implements Serializable {
         return this.inversePrecedence;
     }
 
+    @DataBoundSetter
+    public void setPriority(Integer priority) {
+        this.priority = priority;
+    }
+
+    @Exported
+    public Integer getPriority() {
+        return this.priority;
+    }
+
     @DataBoundSetter
     public final void setResource(String resource) {
         if(resource != null) {
@@ -3,21 +3,31 @@ package org.jenkins.plugins.lockableresources;
 import com.google.common.collect.Lists;
 import hudson.EnvVars;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.AsyncPeriodicWork;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.queue.QueueTaskFuture;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.jenkins.plugins.lockableresources.actions.LockableResourcesRootAction;
 import org.jenkins.plugins.lockableresources.jobProperty.RequiredResourcesProperty;
+import org.jenkins.plugins.lockableresources.resources.LockableResource;
 import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.resources.RequiredResources;
+import static org.junit.Assert.*;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.MockBuilder;
+import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.TestExtension;
 
 public class BasicIntegrationTest {
@@ -119,6 +129,128 @@ public class BasicIntegrationTest {
         jenkinsRule.assertBuildStatus(Result.SUCCESS, build);
     }
 
+    @Test
+    public void lock_of_removed_build_is_released() throws Exception {
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        manager.createResource("resource1");
+        LockableResource resource1 = manager.getResourceFromName("resource1");
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject("project");
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(project);
+        manager.lock(Collections.singleton(resource1), null, build, null, false, null);
+        assertTrue(resource1.isLocked());
+
+        // Removed from the disk, without any notification
+        Util.deleteRecursive(build.getRootDir());
+        project._getRuns().remove(build);
+        assertNull(Run.fromExternalizableId(build.getExternalizableId()));
+
+        jenkinsRule.jenkins.getExtensionList(AsyncPeriodicWork.class).get(LockableResourcesManager.ReconcileWork.class).doRun();
+        long timeout = System.currentTimeMillis() + 30000;
+        while(resource1.isLocked()) {
+            assertTrue("resource1 still locked", System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void reconcile_releases_locks_of_finished_and_removed_builds() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        manager.createResource("resource1");
+        manager.createResource("resource2");
+        manager.createResource("resource3");
+        LockableResource resource1 = manager.getResourceFromName("resource1");
+        LockableResource resource2 = manager.getResourceFromName("resource2");
+        LockableResource resource3 = manager.getResourceFromName("resource3");
+
+        FreeStyleProject running = jenkinsRule.createFreeStyleProject("running");
+        running.addProperty(new RequiredResourcesProperty(Collections.singletonList(new RequiredResources("resource3", null, 0)), null));
+        running.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                semaphore.acquire();
+                return true;
+            }
+        });
+        QueueTaskFuture<FreeStyleBuild> runningBuild = running.scheduleBuild2(0);
+        runningBuild.waitForStart();
+        long timeout = System.currentTimeMillis() + 30000;
+        while(!resource3.isLocked()) {
+            assertTrue("resource3 not locked", System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject("project");
+        // Finished without releasing its lock
+        FreeStyleBuild finished = jenkinsRule.buildAndAssertSuccess(project);
+        manager.lock(Collections.singleton(resource1), null, finished, null, false, null);
+        // Removed from the disk, without any notification
+        FreeStyleBuild removed = jenkinsRule.buildAndAssertSuccess(project);
+        manager.lock(Collections.singleton(resource2), null, removed, null, false, null);
+        Util.deleteRecursive(removed.getRootDir());
+        project._getRuns().remove(removed);
+
+        jenkinsRule.jenkins.getExtensionList(AsyncPeriodicWork.class).get(LockableResourcesManager.ReconcileWork.class).doRun();
+        timeout = System.currentTimeMillis() + 30000;
+        while(resource1.isLocked() || resource2.isLocked()) {
+            assertTrue("Locks not released", System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+        // Checked in the same pass: the running build keeps its lock
+        assertTrue(resource3.isLocked());
+        semaphore.release();
+        jenkinsRule.assertBuildStatusSuccess(runningBuild);
+        assertFalse(resource3.isLocked());
+    }
+
+    @Test
+    public void free_resource_amount_matches_full_count() throws Exception {
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        manager.createResource("resource1", "label1");
+        manager.createResource("resource2", "label1 label2");
+        manager.createResource("label1", "label2");
+        manager.createResource("label3");
+        LockableResourcesRootAction action = new LockableResourcesRootAction();
+        String[] labels = {"label1", "label2", "label3", "resource1", "label1 label2", "unknown"};
+        assertFreeResourceAmount(action, labels);
+
+        manager.reserve(Collections.singletonList(manager.getResourceFromName("label1")), "user1");
+        manager.reserve(Collections.singletonList(manager.getResourceFromName("resource1")), "user1");
+        assertFreeResourceAmount(action, labels);
+        assertEquals(1, action.getFreeResourceAmount("label1"));
+
+        manager.unreserve(Collections.singletonList(manager.getResourceFromName("label1")));
+        assertFreeResourceAmount(action, labels);
+        assertEquals(2, action.getFreeResourceAmount("label1"));
+    }
+
+    @Test
+    public void lower_priority_build_runs_when_higher_priority_build_can_never_start() throws Exception {
+        LockableResourcesManager.get().createResource("resource1", "capa1");
+        LockableResourcesManager.get().createResource("resource2", "capa1");
+
+        // Needs more resources than there are
+        FreeStyleProject high = jenkinsRule.createFreeStyleProject("high");
+        RequiredResourcesProperty highProperty = new RequiredResourcesProperty(Collections.singletonList(new RequiredResources(null, "capa1", 3)), null);
+        highProperty.setPriority(10);
+        high.addProperty(highProperty);
+        high.scheduleBuild2(0);
+        jenkinsRule.jenkins.getQueue().maintain();
+        assertTrue(jenkinsRule.jenkins.getQueue().getItem(high).isBlocked());
+
+        FreeStyleProject low = jenkinsRule.createFreeStyleProject("low");
+        low.addProperty(new RequiredResourcesProperty(Collections.singletonList(new RequiredResources("resource1", null, 0)), null));
+        jenkinsRule.assertBuildStatusSuccess(low.scheduleBuild2(0).get(60, TimeUnit.SECONDS));
+
+        jenkinsRule.jenkins.getQueue().cancel(high);
+    }
+
+    private static void assertFreeResourceAmount(LockableResourcesRootAction action, String... labels) {
+        for(String label : labels) {
+            assertEquals(label, LockableResourcesManager.get().getFreeAmount(label, null, null), action.getFreeResourceAmount(label));
+        }
+    }
+
     @TestExtension
     public static class PrinterBuilder extends MockBuilder {
         private final String varName;
@@ -9,6 +9,7 @@ import hudson.model.Result;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import org.jenkins.plugins.lockableresources.jobProperty.RequiredResourcesProperty;
 import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.resources.RequiredResources;
@@ -325,6 +326,212 @@ public class LockStepTest {
         });
     }
 
+    @Test
+    public void lockPriorityOrder() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager.get().createResource("resource1");
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource1') {\n"
+                        + "	semaphore 'wait-inside'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowJob q = story.j.jenkins.createProject(WorkflowJob.class, "q");
+                q.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource1', priority: 10) {\n"
+                        + "	semaphore 'wait-inside'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait-inside/1", b1);
+
+                WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+                // Ensure that b2 reaches the lock before the build of q
+                story.j.waitForMessage("[resource1] is locked, waiting...", b2);
+                WorkflowRun q1 = q.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("[resource1] is locked, waiting...", q1);
+
+                // Unlock resource1
+                SemaphoreStep.success("wait-inside/1", null);
+                story.j.waitForMessage("Lock released on [resource1]", b1);
+
+                // The build of q gets the lock before #2 because of its priority
+                story.j.waitForMessage("Lock acquired on [resource1]", q1);
+                SemaphoreStep.success("wait-inside/2", null);
+                story.j.waitForMessage("Lock acquired on [resource1]", b2);
+                SemaphoreStep.success("wait-inside/3", null);
+                story.j.waitForMessage("Finish", b2);
+            }
+        });
+    }
+
+    @Test
+    public void waiterKeepsWaitingForMissingResources() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager.get().createResource("resource1");
+                LockableResourcesManager.get().createResource("resource2");
+                WorkflowJob p1 = story.j.jenkins.createProject(WorkflowJob.class, "p1");
+                p1.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource1') {\n"
+                        + "	semaphore 'wait-inside1'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowJob p2 = story.j.jenkins.createProject(WorkflowJob.class, "p2");
+                p2.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource2') {\n"
+                        + "	semaphore 'wait-inside2'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowJob p3 = story.j.jenkins.createProject(WorkflowJob.class, "p3");
+                p3.setDefinition(new CpsFlowDefinition(
+                        "lock(resources: ['resource1', 'resource2']) {\n"
+                        + "	echo 'Locked by p3'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+
+                WorkflowRun b1 = p1.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait-inside1/1", b1);
+                WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait-inside2/1", b2);
+                WorkflowRun b3 = p3.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("[resource1, resource2] is locked, waiting...", b3);
+
+                // Still missing resource2 once resource1 is free again
+                SemaphoreStep.success("wait-inside1/1", null);
+                story.j.waitForMessage("Finish", b1);
+                story.j.assertLogNotContains("Locked by p3", b3);
+                SemaphoreStep.success("wait-inside2/1", null);
+                story.j.waitForMessage("Locked by p3", b3);
+                story.j.waitForMessage("Finish", b2);
+                story.j.waitForMessage("Finish", b3);
+            }
+        });
+    }
+
+    @Test
+    public void unlockResumesSeveralWaiters() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager.get().createResource("resource1", "label1");
+                LockableResourcesManager.get().createResource("resource2", "label1");
+                WorkflowJob p1 = story.j.jenkins.createProject(WorkflowJob.class, "p1");
+                p1.setDefinition(new CpsFlowDefinition(
+                        "lock(label: 'label1') {\n"
+                        + "	semaphore 'wait-inside1'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowJob p2 = story.j.jenkins.createProject(WorkflowJob.class, "p2");
+                p2.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource1') {\n"
+                        + "	semaphore 'wait-inside2'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowJob p3 = story.j.jenkins.createProject(WorkflowJob.class, "p3");
+                p3.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource2') {\n"
+                        + "	semaphore 'wait-inside3'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+
+                WorkflowRun b1 = p1.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait-inside1/1", b1);
+                WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("[resource1] is locked, waiting...", b2);
+                WorkflowRun b3 = p3.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("[resource2] is locked, waiting...", b3);
+
+                // A single unlock releases both resources: both waiters proceed
+                SemaphoreStep.success("wait-inside1/1", null);
+                story.j.waitForMessage("Lock released on [label1]", b1);
+                SemaphoreStep.waitForStart("wait-inside2/1", b2);
+                SemaphoreStep.waitForStart("wait-inside3/1", b3);
+                story.j.waitForMessage("Lock acquired on [resource1]", b2);
+                story.j.waitForMessage("Lock acquired on [resource2]", b3);
+                SemaphoreStep.success("wait-inside2/1", null);
+                SemaphoreStep.success("wait-inside3/1", null);
+                story.j.waitForMessage("Finish", b2);
+                story.j.waitForMessage("Finish", b3);
+            }
+        });
+    }
+
+    @Test
+    public void starvingWaiterHoldsBackResources() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager.get().createResource("resource1", "label1");
+                LockableResourcesManager.get().createResource("resource2", "label1");
+                LockableResourcesManager.get().setStarvationMinutes(1);
+                WorkflowJob p1 = story.j.jenkins.createProject(WorkflowJob.class, "p1");
+                p1.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource1') {\n"
+                        + "	semaphore 'wait-inside1'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowJob p2 = story.j.jenkins.createProject(WorkflowJob.class, "p2");
+                p2.setDefinition(new CpsFlowDefinition(
+                        "lock(resource: 'resource2') {\n"
+                        + "	semaphore 'wait-inside2'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+                WorkflowJob p3 = story.j.jenkins.createProject(WorkflowJob.class, "p3");
+                p3.setDefinition(new CpsFlowDefinition(
+                        "lock(label: 'label1', quantity: 2) {\n"
+                        + "	semaphore 'wait-inside3'\n"
+                        + "}\n"
+                        + "echo 'Finish'"
+                ));
+
+                WorkflowRun b1 = p1.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait-inside1/1", b1);
+                WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait-inside2/1", b2);
+                WorkflowRun b3 = p3.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("[(Label: label1, Quantity: 2)] is locked, waiting...", b3);
+                long queued = System.currentTimeMillis();
+
+                // Not starving yet: resource2 goes to a newer build
+                WorkflowRun b4 = p2.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("[resource2] is locked, waiting...", b4);
+                SemaphoreStep.success("wait-inside2/1", null);
+                SemaphoreStep.waitForStart("wait-inside2/2", b4);
+                WorkflowRun b5 = p2.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("[resource2] is locked, waiting...", b5);
+
+                // Starving: resource2 is kept for b3 until resource1 is free too
+                Thread.sleep(Math.max(0, queued + TimeUnit.MINUTES.toMillis(1) + 1000 - System.currentTimeMillis()));
+                SemaphoreStep.success("wait-inside2/2", null);
+                story.j.waitForMessage("Finish", b4);
+                story.j.assertLogNotContains("Lock acquired", b5);
+                SemaphoreStep.success("wait-inside1/1", null);
+                SemaphoreStep.waitForStart("wait-inside3/1", b3);
+                story.j.waitForMessage("(taken 1 times by other builds meanwhile)", b3);
+                story.j.assertLogNotContains("Lock acquired", b5);
+
+                SemaphoreStep.success("wait-inside3/1", null);
+                story.j.waitForMessage("Finish", b3);
+                SemaphoreStep.success("wait-inside2/3", null);
+                story.j.waitForMessage("Finish", b5);
+            }
+        });
+    }
+
     @Test
     public void parallelLock() {
         story.addStep(new Statement() {
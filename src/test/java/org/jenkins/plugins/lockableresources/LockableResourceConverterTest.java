@@ -0,0 +1,113 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.util.RobustReflectionConverter;
+import hudson.util.XStream2;
+import java.util.ArrayList;
+import java.util.List;
+import org.jenkins.plugins.lockableresources.resources.LockableResource;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+public class LockableResourceConverterTest {
+    private static final int BENCHMARK_SIZE = 10000;
+    /**
+     * System property enabling the benchmarks, which are skipped by default
+     */
+    static final String BENCHMARK_PROPERTY = "lockableresources.benchmark";
+
+    @Test
+    public void testCompactFormat() {
+        XStream2 xs = new XStream2();
+        LockableResource r = new LockableResource("r1", "l1 l2");
+        String xml = xs.toXML(r);
+        assertTrue(xml.contains("name=\"r1\""));
+        assertTrue(xml.contains("labels=\"l1 l2\""));
+        assertFalse(xml.contains("description"));
+        assertFalse(xml.contains("reserved"));
+        LockableResource read = (LockableResource) xs.fromXML(xml);
+        assertEquals("r1", read.getName());
+        assertEquals("l1 l2", read.getLabels());
+        assertEquals("", read.getDescription());
+        assertEquals(2, read.getCapabilities().size());
+    }
+
+    @Test
+    public void testMultiLineValues() {
+        XStream2 xs = new XStream2();
+        LockableResource r = new LockableResource("r1", "l1");
+        r.setDescription("first line\nsecond line");
+        LockableResource read = (LockableResource) xs.fromXML(xs.toXML(r));
+        assertEquals("first line\nsecond line", read.getDescription());
+    }
+
+    @Test
+    public void testReadOldFormat() {
+        XStream2 xs = new XStream2();
+        String xml = "<org.jenkins.plugins.lockableresources.resources.LockableResource>\n"
+                + "  <queuedContexts class=\"empty-list\"/>\n"
+                + "  <name>r1</name>\n"
+                + "  <description>d1</description>\n"
+                + "  <labels>l1 l2</labels>\n"
+                + "  <reservedBy>user1</reservedBy>\n"
+                + "  <reservedUntil>0</reservedUntil>\n"
+                + "  <queueItemId>12</queueItemId>\n"
+                + "  <queueItemProject>project1</queueItemProject>\n"
+                + "  <queuingStarted>0</queuingStarted>\n"
+                + "</org.jenkins.plugins.lockableresources.resources.LockableResource>";
+        LockableResource read = (LockableResource) xs.fromXML(xml);
+        assertEquals("r1", read.getName());
+        assertEquals("d1", read.getDescription());
+        assertEquals("l1 l2", read.getLabels());
+        assertEquals("user1", read.getReservedBy());
+        assertEquals(12, read.getQueueItemId());
+        assertEquals("project1", read.getQueueItemProject());
+    }
+
+    /**
+     * Save/load time and file size of {@value #BENCHMARK_SIZE} resources,
+     * with the reflection-based converter (before) and the dedicated converter (after)<br>
+     * Only run with -D{@value #BENCHMARK_PROPERTY}=true
+     */
+    @Test
+    public void benchmark() {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        List<LockableResource> resources = new ArrayList<>();
+        for(int i = 0; i < BENCHMARK_SIZE; i++) {
+            LockableResource r = new LockableResource("resource-" + i, "label-" + (i % 10) + " label-" + (i % 100));
+            if(i % 2 == 0) {
+                r.setDescription("Resource number " + i);
+            }
+            resources.add(r);
+        }
+        XStream2 reflection = new XStream2();
+        reflection.registerConverter(new RobustReflectionConverter(reflection.getMapper(), reflection.getReflectionProvider()) {
+            @Override
+            public boolean canConvert(Class type) {
+                return type == LockableResource.class;
+            }
+        }, XStream.PRIORITY_VERY_HIGH);
+        run("before", reflection, resources);
+        run("after", new XStream2(), resources);
+    }
+
+    private static void run(String name, XStream2 xs, List<LockableResource> resources) {
+        // Warm up
+        xs.fromXML(xs.toXML(resources));
+        long start = System.nanoTime();
+        String xml = xs.toXML(resources);
+        long saved = System.nanoTime();
+        List<?> read = (List<?>) xs.fromXML(xml);
+        long loaded = System.nanoTime();
+        assertEquals(resources.size(), read.size());
+        System.out.println(String.format("%s: %d resources, save %d ms, load %d ms, %d bytes",
+                name, resources.size(), (saved - start) / 1000000, (loaded - saved) / 1000000, xml.length()));
+    }
+}
@@ -25,7 +25,9 @@ package org.jenkins.plugins.lockableresources;
 
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
+import java.util.Set;
 import org.jenkins.plugins.lockableresources.resources.LockableResource;
+import org.jenkins.plugins.lockableresources.resources.ResourceCapability;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
@@ -95,6 +97,39 @@ public class LockableResourceTest {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test of getCapabilities method, of class LockableResource.
+     */
+    @Test
+    public void testGetCapabilities() {
+        System.out.println("getCapabilities");
+        Set<ResourceCapability> result = instance.getCapabilities();
+        assertEquals(2, result.size());
+        assertTrue(result.contains(new ResourceCapability("l1")));
+        assertTrue(result.contains(new ResourceCapability("l2")));
+        // Capabilities are shared between resources
+        LockableResource other = new LockableResource("r2", "l2, l3");
+        for(ResourceCapability capability : other.getCapabilities()) {
+            if(capability.getName().equals("l2")) {
+                assertSame(ResourceCapability.intern("l2"), capability);
+            }
+        }
+        // Capabilities are parsed again when labels change
+        instance.setLabels("l3");
+        assertEquals(1, instance.getCapabilities().size());
+        assertTrue(instance.getCapabilities().contains(new ResourceCapability("l3")));
+    }
+
+    /**
+     * The shared capabilities can not be modified
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSharedCapabilityIsImmutable() {
+        System.out.println("sharedCapabilityIsImmutable");
+        ResourceCapability capability = instance.getCapabilities().iterator().next();
+        capability.setName("other");
+    }
+
     /**
      * Test of getReservedBy method, of class LockableResource.
      */
@@ -0,0 +1,401 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.jenkins.plugins.lockableresources.resources.LockableResource;
+import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.resources.MVStoreResourcesStateStore;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * Persistence of the configuration and of the runtime state of {@link LockableResourcesManager}
+ */
+public class LockableResourcesManagerStateTest {
+    private static final String ROOT = "org.jenkins.plugins.lockableresources.resources.LockableResourcesManager";
+    private static final String CONFIG_FILE = "org.jenkins.plugins.lockableresources.LockableResourcesManager.xml";
+    private static final String STATE_FILE = "org.jenkins.plugins.lockableresources.LockableResourcesManager.state.xml";
+    private static final String MVSTORE_FILE = "org.jenkins.plugins.lockableresources.LockableResourcesManager.mv.db";
+    private static final String SHARD_FILE_PREFIX = "org.jenkins.plugins.lockableresources.LockableResourcesManager.state.";
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    @Test
+    public void loadConfigFallsBackToXStream() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                // Lock steps saved with the configuration by older versions: not supported by ResourcesConfigReader
+                writeConfig("<" + ROOT + ">\n"
+                        + "  <resources class=\"linked-hash-set\">\n"
+                        + "    <org.jenkins.plugins.lockableresources.resources.LockableResource name=\"r1\" labels=\"l1 l2\"/>\n"
+                        + "  </resources>\n"
+                        + "  <queuedContexts/>\n"
+                        + "  <useFairSelection>true</useFairSelection>\n"
+                        + "</" + ROOT + ">");
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.load();
+                // Would be a blank configuration without the fallback
+                LockableResource r1 = manager.getResourceFromName("r1");
+                assertNotNull(r1);
+                assertEquals("l1 l2", r1.getLabels());
+                assertTrue(manager.getUseFairSelection());
+            }
+        });
+    }
+
+    @Test
+    public void oldConfigIsMigrated() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                // Runtime state saved with the configuration by older versions
+                writeConfig("<" + ROOT + " plugin=\"lockable-resources@1.11\">\n"
+                        + "  <resources class=\"linked-hash-set\">\n"
+                        + "    <org.jenkins.plugins.lockableresources.LockableResource>\n"
+                        + "      <name>r1</name>\n"
+                        + "      <description>d1</description>\n"
+                        + "      <labels>l1</labels>\n"
+                        + "      <reservedBy>user1</reservedBy>\n"
+                        + "      <reservedUntil>0</reservedUntil>\n"
+                        + "      <queueItemId>0</queueItemId>\n"
+                        + "      <queuingStarted>0</queuingStarted>\n"
+                        + "    </org.jenkins.plugins.lockableresources.LockableResource>\n"
+                        + "    <org.jenkins.plugins.lockableresources.LockableResource>\n"
+                        + "      <name>r2</name>\n"
+                        + "      <description></description>\n"
+                        + "      <labels></labels>\n"
+                        + "      <reservedUntil>0</reservedUntil>\n"
+                        + "      <queueItemId>0</queueItemId>\n"
+                        + "      <queuingStarted>0</queuingStarted>\n"
+                        + "    </org.jenkins.plugins.lockableresources.LockableResource>\n"
+                        + "  </resources>\n"
+                        + "  <queuedContexts/>\n"
+                        + "  <useFairSelection>false</useFairSelection>\n"
+                        + "</" + ROOT + ">");
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                assertEquals("d1", manager.getResourceFromName("r1").getDescription());
+                assertEquals("user1", manager.getResourceFromName("r1").getReservedBy());
+                assertNull(manager.getResourceFromName("r2").getReservedBy());
+                // Moved to the state file
+                assertTrue(readState().contains("<reservedBy>user1</reservedBy>"));
+                String config = new String(Files.readAllBytes(new File(story.j.jenkins.getRootDir(), CONFIG_FILE).toPath()), StandardCharsets.UTF_8);
+                assertTrue(config.contains("r1"));
+                for(String field : new String[]{"reservedBy", "reservedUntil", "queueItemId", "queuingStarted", "queuedContexts"}) {
+                    assertFalse(field + " still in " + config, config.contains(field));
+                }
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                // Read from the state file
+                assertEquals("user1", LockableResourcesManager.get().getResourceFromName("r1").getReservedBy());
+            }
+        });
+    }
+
+    @Test
+    public void journalKeepsStateAfterCrash() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.setUseJournal(true);
+                manager.createResource("r1");
+                manager.createResource("r2");
+                // Snapshot (none written yet)
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                // Journal record only
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r2")), "user2");
+                // Crash before the next snapshot: the state is read again from the disk
+                manager.load();
+                assertEquals("user1", manager.getResourceFromName("r1").getReservedBy());
+                assertEquals("user2", manager.getResourceFromName("r2").getReservedBy());
+                // Records written after the restart are replayed as well
+                manager.unreserve(Collections.singletonList(manager.getResourceFromName("r1")));
+                manager.load();
+                assertNull(manager.getResourceFromName("r1").getReservedBy());
+                assertEquals("user2", manager.getResourceFromName("r2").getReservedBy());
+            }
+        });
+    }
+
+    @Test
+    public void journalIsClearedWhenDisabled() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.setUseJournal(true);
+                manager.createResource("r1");
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                // Journal record only
+                manager.unreserve(Collections.singletonList(manager.getResourceFromName("r1")));
+                // Snapshot written before leaving the journal
+                manager.setUseJournal(false);
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user2");
+                // The old records must not be replayed over the state written without the journal
+                manager.setUseJournal(true);
+                manager.flush();
+                manager.load();
+                assertEquals("user2", manager.getResourceFromName("r1").getReservedBy());
+            }
+        });
+    }
+
+    @Test
+    public void stateIsWrittenAfterDelay() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.setSaveDelay(2000);
+                manager.createResource("r1");
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                assertFalse(readState().contains("<reservedBy>user1</reservedBy>"));
+                waitForState("<reservedBy>user1</reservedBy>");
+            }
+        });
+    }
+
+    @Test
+    public void stateIsWrittenOnShutdown() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.setSaveDelay(3600000);
+                manager.createResource("r1");
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                assertFalse(readState().contains("<reservedBy>user1</reservedBy>"));
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                assertEquals("user1", LockableResourcesManager.get().getResourceFromName("r1").getReservedBy());
+            }
+        });
+    }
+
+    @Test
+    public void failedWriteIsRetried() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.createResource("r1");
+                // The state file can not be replaced by a directory that is not empty
+                File stateFile = new File(story.j.jenkins.getRootDir(), STATE_FILE);
+                stateFile.delete();
+                File blocker = new File(stateFile, "blocker");
+                assertTrue(blocker.mkdirs());
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                assertTrue(stateFile.isDirectory());
+                assertTrue(blocker.delete() && stateFile.delete());
+                // No other modification: written by the retry
+                waitForState("<reservedBy>user1</reservedBy>");
+            }
+        });
+    }
+
+    @Test
+    public void reservationExpiresWithoutReads() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.createResource("r1");
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1", "user2", 2.0 / 3600);
+                assertTrue(readState().contains("<reservedFor>user2</reservedFor>"));
+                // Only the state file is read: the reservation must be released by the timer
+                long timeout = System.currentTimeMillis() + 30000;
+                while(readState().contains("<reservedFor>user2</reservedFor>")) {
+                    assertTrue("Reservation not released", System.currentTimeMillis() < timeout);
+                    Thread.sleep(100);
+                }
+                assertFalse(readState().contains("user1"));
+            }
+        });
+    }
+
+    @Test
+    public void onlyChangedShardsAreWritten() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.setStateShards(4);
+                for(int i = 0; i < 20; i++) {
+                    manager.createResource("r" + i);
+                }
+                // First write: all the shards
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r0")), "user1");
+                for(int i = 0; i < 4; i++) {
+                    assertTrue(getShardFile(i).isFile());
+                }
+                StateFilesListener.written.clear();
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                assertEquals(Collections.singletonList(getShardFile(getShard("r1", 4)).getName()), StateFilesListener.written);
+
+                // Shards left by a larger number of shards are deleted
+                manager.setStateShards(2);
+                manager.save();
+                StateFilesListener.written.clear();
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r2")), "user1");
+                assertTrue(StateFilesListener.written.contains(getShardFile(0).getName()));
+                assertTrue(StateFilesListener.written.contains(getShardFile(1).getName()));
+                assertFalse(getShardFile(2).exists());
+                assertFalse(getShardFile(3).exists());
+                for(int i = 0; i < 3; i++) {
+                    assertEquals("user1", manager.getResourceFromName("r" + i).getReservedBy());
+                }
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                for(int i = 0; i < 20; i++) {
+                    assertEquals((i < 3) ? "user1" : null, manager.getResourceFromName("r" + i).getReservedBy());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void mvStoreStateSurvivesRestart() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.setStateStore(MVStoreResourcesStateStore.ID);
+                manager.createResource("r1");
+                manager.createResource("r2");
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                // Committed to the MVStore only
+                assertFalse(readState().contains("user1"));
+                assertTrue(new File(story.j.jenkins.getRootDir(), MVSTORE_FILE).isFile());
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                assertEquals(MVStoreResourcesStateStore.ID, manager.getStateStore());
+                assertEquals("user1", manager.getResourceFromName("r1").getReservedBy());
+                assertNull(manager.getResourceFromName("r2").getReservedBy());
+                manager.unreserve(Collections.singletonList(manager.getResourceFromName("r1")));
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r2")), "user2");
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                assertNull(manager.getResourceFromName("r1").getReservedBy());
+                assertEquals("user2", manager.getResourceFromName("r2").getReservedBy());
+            }
+        });
+    }
+
+    @Test
+    public void switchingStoreCopiesXmlState() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                LockableResourcesManager manager = LockableResourcesManager.get();
+                manager.createResource("r1");
+                manager.reserve(Collections.singletonList(manager.getResourceFromName("r1")), "user1");
+                assertTrue(readState().contains("<reservedBy>user1</reservedBy>"));
+                // The whole state is written to the new store
+                manager.setStateStore(MVStoreResourcesStateStore.ID);
+                manager.save();
+                manager.flush();
+                assertTrue(new File(story.j.jenkins.getRootDir(), MVSTORE_FILE).isFile());
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                // Read from the new store
+                assertEquals("user1", LockableResourcesManager.get().getResourceFromName("r1").getReservedBy());
+                assertTrue(new File(story.j.jenkins.getRootDir(), STATE_FILE).delete());
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                assertEquals("user1", LockableResourcesManager.get().getResourceFromName("r1").getReservedBy());
+            }
+        });
+    }
+
+    /**
+     * Names of the state files written
+     */
+    @TestExtension("onlyChangedShardsAreWritten")
+    public static class StateFilesListener extends SaveableListener {
+        static final List<String> written = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            String name = file.getFile().getName();
+            if(name.startsWith(SHARD_FILE_PREFIX) && !name.equals(STATE_FILE)) {
+                written.add(name);
+            }
+        }
+    }
+
+    private File getShardFile(int i) {
+        return new File(story.j.jenkins.getRootDir(), SHARD_FILE_PREFIX + i + ".xml");
+    }
+
+    /**
+     * Same as XmlResourcesStateStore
+     */
+    private static int getShard(String name, int count) {
+        return (name.hashCode() & Integer.MAX_VALUE) % count;
+    }
+
+    private String readState() throws Exception {
+        File file = new File(story.j.jenkins.getRootDir(), STATE_FILE);
+        return file.isFile() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : "";
+    }
+
+    private void waitForState(String expected) throws Exception {
+        long timeout = System.currentTimeMillis() + 30000;
+        while(!readState().contains(expected)) {
+            assertTrue("State file without " + expected + ": " + readState(), System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+    }
+
+    private void writeConfig(String xml) throws Exception {
+        File file = new File(story.j.jenkins.getRootDir(), CONFIG_FILE);
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -30,32 +30,28 @@ public class LockableResourcesManagerTest {
         // Given
         String fullName = "my-project";
         String queueItemProject = "other-project";
-        Job<?, ?> project1 = mockups.createProjectMock("Project2", queueItemProject);
-        Job<?, ?> project2 = mockups.createProjectMock("Project1", fullName);
-        Queue.Item item1_1 = mockups.createQueuedItemMock(project1, 1);
-        Queue.Item item2_1 = mockups.createQueuedItemMock(project2, 1);
-        Queue.Item item2_2 = mockups.createQueuedItemMock(project2, 2);
 
-        LockableResource resource1 = mockups.createQueuedLockableResourceMock("resource1", "desc", "r1", project1, item1_1);
-        LockableResource resource2 = mockups.createQueuedLockableResourceMock("resource2", "desc", "r2", project2, item2_1);
-        LockableResource resource3 = mockups.createQueuedLockableResourceMock("resource3", "desc", "r3", project2, item2_2);
+        LockableResource resource1 = createResource("resource1", "r1");
+        resource1.setQueued(1, queueItemProject);
+        LockableResource resource2 = createResource("resource2", "r2");
+        resource2.setQueued(1, fullName);
+        LockableResource resource3 = createResource("resource3", "r3");
+        resource3.setQueued(2, fullName);
+        LockableResource resource4 = createResource("resource4", "r4");
 
         Set<LockableResource> resources = Sets.newHashSet();
         resources.add(resource1);
         resources.add(resource2);
         resources.add(resource3);
+        resources.add(resource4);
 
         // When
-        LockableResourcesManager lockableResourcesManager = mockups.createLockableResourcesManagerMock(resources, false);
-        Mockito.when(lockableResourcesManager.getQueuedResourcesFromProject(fullName)).thenCallRealMethod();
+        LockableResourcesManager lockableResourcesManager = mockups.createLockableResourcesManager(resources);
         Set<LockableResource> matching = lockableResourcesManager.getQueuedResourcesFromProject(fullName);
 
         // Then
-        Mockito.verify(resource1).getQueueItemProject();
-        Mockito.verify(resource2).getQueueItemProject();
-        Mockito.verify(resource3).getQueueItemProject();
-
         Assertions.assertThat(matching).containsExactlyInAnyOrder(resource2, resource3);
+        Assertions.assertThat(lockableResourcesManager.getQueuedResourcesFromProject(queueItemProject)).containsExactly(resource1);
     }
 
     @Test
@@ -64,24 +60,38 @@ public class LockableResourcesManagerTest {
         Job<?, ?> project = mockups.createProjectMock("Project", "MyProject");
         Queue.Item item = mockups.createQueuedItemMock(project, 1);
         Run build = mockups.createBuildMock(item, null);
+        Mockito.when(build.getExternalizableId()).thenReturn("MyProject#1");
+        Run otherBuild = mockups.createBuildMock(item, null);
+        Mockito.when(otherBuild.getExternalizableId()).thenReturn("MyProject#2");
 
-        LockableResource resource1 = mockups.createLockedLockableResourceMock("resource1", "desc", "r1", project, item, build);
-        LockableResource resource2 = mockups.createQueuedLockableResourceMock("resource2", "desc", "r2", project, item);
-        LockableResource resource3 = mockups.createFreeLockableResourceMock("resource3", "desc", "r3");
-        LockableResource resource4 = mockups.createReservedLockableResourceMock("resource4", "desc", "r4", "ReservedBySomeone");
+        LockableResource resource1 = createResource("resource1", "r1");
+        resource1.setBuild(build);
+        LockableResource resource2 = createResource("resource2", "r2");
+        resource2.setQueued(1, "MyProject");
+        LockableResource resource3 = createResource("resource3", "r3");
+        LockableResource resource4 = createResource("resource4", "r4");
+        resource4.setReservedBy("ReservedBySomeone");
+        LockableResource resource5 = createResource("resource5", "r5");
+        resource5.setBuild(otherBuild);
 
         Set<LockableResource> resources = Sets.newHashSet();
         resources.add(resource1);
         resources.add(resource2);
         resources.add(resource3);
         resources.add(resource4);
+        resources.add(resource5);
 
         // When
-        LockableResourcesManager manager = mockups.createLockableResourcesManagerMock(resources, false);
-        Mockito.when(manager.getLockedResourcesFromBuild(build)).thenCallRealMethod();
+        LockableResourcesManager manager = mockups.createLockableResourcesManager(resources);
         Set<LockableResource> matching = manager.getLockedResourcesFromBuild(build);
 
         // Then
         Assertions.assertThat(matching).containsExactly(resource1);
     }
+
+    private static LockableResource createResource(String name, String labels) {
+        LockableResource resource = new LockableResource(name, labels);
+        resource.setDescription("desc");
+        return resource;
+    }
 }
@@ -0,0 +1,174 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.XmlFile;
+import hudson.util.XStream2;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jenkins.plugins.lockableresources.resources.LockableResource;
+import org.jenkins.plugins.lockableresources.resources.ResourcesConfigReader;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResourcesConfigReaderTest {
+    private static final String ROOT = "org.jenkins.plugins.lockableresources.resources.LockableResourcesManager";
+    private static final int BENCHMARK_SIZE = 50000;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRead() throws IOException {
+        String xml = "<?xml version='1.1' encoding='UTF-8'?>\n"
+                + "<" + ROOT + " plugin=\"lockable-resources@1.11\">\n"
+                + "  <resources class=\"linked-hash-set\">\n"
+                + "    <org.jenkins.plugins.lockableresources.resources.LockableResource name=\"r1\" labels=\"l1 l2\"/>\n"
+                + "    <org.jenkins.plugins.lockableresources.resources.LockableResource name=\"r2\">\n"
+                + "      <description>first line\nsecond line</description>\n"
+                + "    </org.jenkins.plugins.lockableresources.resources.LockableResource>\n"
+                + "  </resources>\n"
+                + "  <useFairSelection>true</useFairSelection>\n"
+                + "  <maxReservationHours>24.0</maxReservationHours>\n"
+                + "</" + ROOT + ">";
+        Collector collector = new Collector();
+        ResourcesConfigReader.read(new ByteArrayInputStream(xml.getBytes("UTF-8")), collector);
+        assertEquals(2, collector.resources.size());
+        assertEquals("r1", collector.resources.get(0).getName());
+        assertEquals(2, collector.resources.get(0).getCapabilities().size());
+        assertEquals("first line\nsecond line", collector.resources.get(1).getDescription());
+        assertEquals("true", collector.fields.get("useFairSelection"));
+        assertEquals("24.0", collector.fields.get("maxReservationHours"));
+    }
+
+    @Test(expected = ResourcesConfigReader.UnsupportedFormatException.class)
+    public void testUnsupportedFormat() throws IOException {
+        // Lock steps saved with the configuration by older versions
+        String xml = "<" + ROOT + ">\n"
+                + "  <queuedContexts>\n"
+                + "    <org.jenkins.plugins.lockableresources.queue.QueuedContextStruct/>\n"
+                + "  </queuedContexts>\n"
+                + "</" + ROOT + ">";
+        ResourcesConfigReader.read(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Collector());
+    }
+
+    @Test
+    public void testReadRuntimeState() throws IOException {
+        // Runtime state saved with the configuration by older versions
+        long now = System.currentTimeMillis();
+        String resource = "<org.jenkins.plugins.lockableresources.resources.LockableResource>\n"
+                + "  <name>r1</name>\n"
+                + "  <labels>l1</labels>\n"
+                + "  <buildExternalizableId>project1#3</buildExternalizableId>\n"
+                + "  <queueItemId>12</queueItemId>\n"
+                + "  <queueItemProject>project2</queueItemProject>\n"
+                + "  <queuingStarted>" + (now / 1000) + "</queuingStarted>\n"
+                + "  <reservedBy>user1</reservedBy>\n"
+                + "  <reservedFor>user2</reservedFor>\n"
+                + "  <reservedUntil>" + (now + 3600000) + "</reservedUntil>\n"
+                + "</org.jenkins.plugins.lockableresources.resources.LockableResource>";
+        String xml = "<" + ROOT + ">\n"
+                + "  <resources class=\"linked-hash-set\">\n"
+                + resource + "\n"
+                + "  </resources>\n"
+                + "</" + ROOT + ">";
+        Collector collector = new Collector();
+        ResourcesConfigReader.read(new ByteArrayInputStream(xml.getBytes("UTF-8")), collector);
+        assertEquals(1, collector.resources.size());
+        LockableResource streamed = collector.resources.get(0);
+        // Same state as read by XStream
+        LockableResource read = (LockableResource) new XStream2().fromXML(resource);
+        for(LockableResource r : new LockableResource[]{streamed, read}) {
+            assertEquals("r1", r.getName());
+            assertTrue(r.isLocked());
+            assertEquals(12, r.getQueueItemId());
+            assertEquals("project2", r.getQueueItemProject());
+            assertEquals("user1", r.getReservedBy());
+            assertEquals("user2", r.getReservedFor());
+            assertEquals(now + 3600000, r.getReservedUntil());
+        }
+    }
+
+    /**
+     * Startup fixture: load time of a synthetic configuration of {@value #BENCHMARK_SIZE} resources,
+     * with XStream (before) and the streaming reader (after)<br>
+     * Only run with -D{@value LockableResourceConverterTest#BENCHMARK_PROPERTY}=true
+     */
+    @Test
+    public void benchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean(LockableResourceConverterTest.BENCHMARK_PROPERTY));
+        XStream2 xs = new XStream2();
+        xs.alias(ROOT, Config.class);
+        Config config = new Config();
+        for(int i = 0; i < BENCHMARK_SIZE; i++) {
+            LockableResource r = new LockableResource("resource-" + i, "label-" + (i % 10) + " label-" + (i % 100));
+            if(i % 2 == 0) {
+                r.setDescription("Resource number " + i);
+            }
+            config.resources.add(r);
+        }
+        File file = folder.newFile("config.xml");
+        XmlFile xmlFile = new XmlFile(xs, file);
+        xmlFile.write(config);
+        // Warm up
+        xmlFile.read();
+        readStreaming(file);
+        long start = System.nanoTime();
+        Config read = (Config) xmlFile.read();
+        long xstream = System.nanoTime();
+        int streamed = readStreaming(file);
+        long streaming = System.nanoTime();
+        assertEquals(BENCHMARK_SIZE, read.resources.size());
+        assertEquals(BENCHMARK_SIZE, streamed);
+        System.out.println(String.format("%d resources (%d bytes): XStream %d ms, streaming %d ms",
+                BENCHMARK_SIZE, file.length(), (xstream - start) / 1000000, (streaming - xstream) / 1000000));
+    }
+
+    private static int readStreaming(File file) throws IOException {
+        Collector collector = new Collector();
+        try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ResourcesConfigReader.read(in, collector);
+        }
+        return collector.resources.size();
+    }
+
+    private static final class Config {
+        private Set<LockableResource> resources = new LinkedHashSet<>();
+        private Boolean useFairSelection = false;
+        private Double defaultReservationHours = 12.0;
+        private Double maxReservationHours = 72.0;
+        private Boolean showWidget = true;
+    }
+
+    private static final class Collector implements ResourcesConfigReader.Handler {
+        private final List<LockableResource> resources = new ArrayList<>();
+        private final Map<String, String> fields = new HashMap<>();
+
+        @Override
+        public void resource(LockableResource resource) {
+            resources.add(resource);
+        }
+
+        @Override
+        public boolean field(String name, String value) {
+            fields.put(name, value);
+            return true;
+        }
+    }
+}
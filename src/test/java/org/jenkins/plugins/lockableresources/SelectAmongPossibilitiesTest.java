@@ -0,0 +1,76 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import groovy.lang.Tuple2;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.assertj.core.api.Assertions;
+import org.jenkins.plugins.lockableresources.resources.LockableResourcesManager;
+import org.junit.Test;
+
+public class SelectAmongPossibilitiesTest {
+    @Test
+    public void should_select_the_quantity_of_each_sub_request() {
+        List<Tuple2<Set<String>, Integer>> request = new ArrayList<>();
+        request.add(new Tuple2<>(candidates("a", "b", "c"), 2));
+        request.add(new Tuple2<>(candidates("d"), 1));
+        request.add(new Tuple2<>(candidates("e"), 0));
+
+        Set<String> selected = LockableResourcesManager.selectAmongPossibilities(request);
+
+        Assertions.assertThat(selected).containsExactlyInAnyOrder("a", "b", "d");
+    }
+
+    @Test
+    public void should_move_a_candidate_to_another_sub_request_when_needed() {
+        // The first sub-request prefers "a", which is the only candidate of the second one
+        List<Tuple2<Set<String>, Integer>> request = new ArrayList<>();
+        request.add(new Tuple2<>(candidates("a", "b"), 1));
+        request.add(new Tuple2<>(candidates("a"), 1));
+
+        Set<String> selected = LockableResourcesManager.selectAmongPossibilities(request);
+
+        Assertions.assertThat(selected).containsExactlyInAnyOrder("a", "b");
+    }
+
+    @Test
+    public void should_fail_without_enough_distinct_candidates() {
+        List<Tuple2<Set<String>, Integer>> request = new ArrayList<>();
+        request.add(new Tuple2<>(candidates("a", "b", "c"), 2));
+        request.add(new Tuple2<>(candidates("b", "c"), 2));
+
+        Assertions.assertThat(LockableResourcesManager.selectAmongPossibilities(request)).isNull();
+        request.add(0, new Tuple2<>(candidates("a"), 2));
+        Assertions.assertThat(LockableResourcesManager.selectAmongPossibilities(request)).isNull();
+    }
+
+    @Test
+    public void should_solve_overlapping_pools_quickly() {
+        // 10 sub-requests of 10 resources among overlapping pools of 100 resources: exactly one solution
+        List<Tuple2<Set<Integer>, Integer>> request = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            Set<Integer> pool = new LinkedHashSet<>();
+            for(int r = 0; r < 100; r++) {
+                if(r >= i * 10) {
+                    pool.add(r);
+                }
+            }
+            request.add(new Tuple2<>(pool, 10));
+        }
+        Assertions.assertThat(LockableResourcesManager.selectAmongPossibilities(request)).hasSize(100);
+        request.add(new Tuple2<Set<Integer>, Integer>(new LinkedHashSet<>(Arrays.asList(99)), 1));
+        Assertions.assertThat(LockableResourcesManager.selectAmongPossibilities(request)).isNull();
+    }
+
+    private static Set<String> candidates(String... names) {
+        return new LinkedHashSet<>(Arrays.asList(names));
+    }
+}
@@ -87,6 +87,18 @@ public abstract class mockups {
         return manager;
     }
 
+    /**
+     * Real manager, without configuration nor persisted state: its indexes are built by {@link LockableResourcesManager#setResources}.<br>
+     * The test must prepare {@link LockableResourcesManager} for PowerMock.
+     */
+    public static final LockableResourcesManager createLockableResourcesManager(Set<LockableResource> resources) {
+        PowerMockito.suppress(PowerMockito.method(LockableResourcesManager.class, "load"));
+        LockableResourcesManager manager = new LockableResourcesManager();
+        when(LockableResourcesManager.get()).thenReturn(manager);
+        manager.setResources(resources);
+        return manager;
+    }
+
     public static final LockableResource createFreeLockableResourceMock(String name, String description, String labels) throws Exception {
         return createLockableResourceMock(name, description, labels, null, null, null, null, null);
     }
@@ -143,8 +155,10 @@ public abstract class mockups {
             ReflectionTestUtils.setField(resource, "queueItemProject", projectName, String.class);
             ReflectionTestUtils.setField(resource, "buildExternalizableId", buildExternalizableId, String.class);
             when(resource.getBuild()).thenReturn((Run) build);
+            when(resource.isLockedByBuild(build)).thenReturn(true);
             when(resource.getBuildName()).thenReturn(buildName);
             when(resource.getQueueItemId()).thenReturn(id);
+            when(resource.isQueuedByTask(id)).thenReturn(true);
             when(resource.getQueueItemProject()).thenReturn(projectName);
             when(resource.getTask()).thenReturn(task);
             when(resource.getReservedBy()).thenReturn(null);
@@ -159,6 +173,7 @@ public abstract class mockups {
             when(resource.getBuild()).thenReturn(null);
             when(resource.getBuildName()).thenReturn(null);
             when(resource.getQueueItemId()).thenReturn(id);
+            when(resource.isQueuedByTask(id)).thenReturn(true);
             when(resource.getQueueItemProject()).thenReturn(projectName);
             when(resource.getTask()).thenReturn(task);
             when(resource.getReservedBy()).thenReturn(null);
@@ -216,6 +216,41 @@ public class LockableResourcesQueueTaskDispatcherTest {
         assertThat(causeOfBlockage.getShortDescription()).isEqualTo("Waiting for resources " + label);
     }
 
+    @Test
+    public void should_not_select_resources_again_while_state_version_is_unchanged() throws Exception {
+        // Given
+        Job<?, ?> project = mockups.createProjectMock(DEFAULT_PROJECT_NAME, DEFAULT_PROJECT_FULLNAME);
+        Queue.Item item = mockups.createQueuedItemMock(project, DEFAULT_ITEM_ID);
+
+        EnvVars env = mockups.createEnvVarsMock(item);
+
+        RequiredResources resource = mock(RequiredResources.class);
+        String label = "label";
+        when(resource.getExpandedResources(env)).thenReturn("");
+        when(resource.getExpandedLabels(env)).thenReturn(label);
+
+        List<RequiredResources> resources = new ArrayList<>();
+        resources.add(resource);
+
+        LockableResourcesManager manager = mockups.createLockableResourcesManagerMock(null, false);
+        mockups.createPropertyMock(manager, project, resources, null);
+        when(manager.queue(project, item)).thenReturn(null);
+        when(manager.getStateVersion()).thenReturn(1L);
+
+        // When
+        LockableResourcesQueueTaskDispatcher dispatcher = spy(LockableResourcesQueueTaskDispatcher.class);
+        CauseOfBlockage first = dispatcher.canRun(item);
+        CauseOfBlockage second = dispatcher.canRun(item);
+        when(manager.getStateVersion()).thenReturn(2L);
+        CauseOfBlockage third = dispatcher.canRun(item);
+
+        // Then
+        verify(manager, times(2)).queue(project, item);
+        assertThat(second).isSameAs(first);
+        assertThat(third).isNotSameAs(first);
+        assertThat(third.getShortDescription()).isEqualTo("Waiting for resources " + label);
+    }
+
     @Test
     public void should_get_cause_of_blockage_with_resource_names_when_required_resources_have_not_been_reserved() throws Exception {
         // Given
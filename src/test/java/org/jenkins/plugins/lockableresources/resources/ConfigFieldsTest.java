@@ -0,0 +1,33 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ConfigFieldsTest {
+    /** Persisted fields read as elements by ResourcesConfigReader, or falling back to XStream */
+    private static final List<String> NOT_SIMPLE = Arrays.asList("resources", "legacyQueuedContexts");
+
+    /**
+     * A persisted field of a type the fast reader cannot convert would make every load fall back to XStream
+     */
+    @Test
+    public void persistedFieldsAreReadByTheConfigReader() {
+        for(Field field : LockableResourcesManager.class.getDeclaredFields()) {
+            if(((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) || NOT_SIMPLE.contains(field.getName())) {
+                continue;
+            }
+            assertNotNull("Persisted field " + field.getName() + " not supported by ResourcesConfigReader",
+                    LockableResourcesManager.convertConfigValue(field.getType(), "1"));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.util.Collections;
+import java.util.Set;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class FairSelectionTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void incrementalCostsMatchFullComputation() throws Exception {
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        manager.setUseFairSelection(true);
+        manager.createResource("resource1", "label1 label2");
+        manager.createResource("resource2", "label1");
+        manager.createResource("resource3", "label1");
+        manager.createResource("resource4", "label1 label2 label3");
+        manager.createResource("resource5", "label2 label3");
+        manager.createResource("resource6", "label3");
+        assertCosts(manager);
+
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "lock(label: 'label1', quantity: 2) {\n"
+                + "	semaphore 'wait-inside'\n"
+                + "}\n"
+                + "echo 'Finish'"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait-inside/1", b1);
+        assertCosts(manager);
+
+        LockableResource resource5 = manager.getResourceFromName("resource5");
+        manager.reserve(Collections.singletonList(resource5), "user1");
+        assertCosts(manager);
+
+        SemaphoreStep.success("wait-inside/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        assertCosts(manager);
+
+        manager.unreserve(Collections.singletonList(resource5));
+        assertCosts(manager);
+    }
+
+    /**
+     * Compare the costs of the fair selection index with the costs computed from the resources
+     */
+    private static void assertCosts(LockableResourcesManager manager) {
+        int candidates = manager.getResources().size();
+        for(LockableResource r : manager.getResources()) {
+            Set<ResourceCapability> capabilities = r.getCapabilities();
+            Set<LockableResource> compatibles = manager.getResourcesFromCapabilities(capabilities, null, null);
+            int nFree = manager.getFreeAmount(compatibles, null);
+            int nMax = compatibles.size();
+            double expected = (nMax - nFree) * (candidates / nMax) + capabilities.size();
+            assertEquals(r.getName(), expected, manager.getFairSelectionCost(r, candidates), 0);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.resources;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LockStateJournalTest {
+    private static final String SEGMENT = "org.jenkins.plugins.lockableresources.LockableResourcesManager.journal.";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplay() throws IOException {
+        File dir = folder.getRoot();
+        LockStateJournal journal = new LockStateJournal(dir);
+        LockableResource r1 = new LockableResource("r1", "");
+        r1.restoreState("project1#1", LockableResource.NOT_QUEUED, null, 0, null, null, 0);
+        journal.append(0, Collections.singletonList(LockStateJournal.toRecord(r1)));
+        r1.restoreState(null, LockableResource.NOT_QUEUED, null, 0, "user1", null, 0);
+        journal.append(0, Collections.singletonList(LockStateJournal.toRecord(r1)));
+
+        Map<String, LockableResource> loaded = load("r1");
+        assertEquals(2, new LockStateJournal(dir).replay(loaded));
+        assertFalse(loaded.get("r1").isLocked());
+        assertEquals("user1", loaded.get("r1").getReservedBy());
+    }
+
+    @Test
+    public void testReplayTruncatedRecord() throws IOException {
+        File dir = folder.getRoot();
+        LockStateJournal journal = new LockStateJournal(dir);
+        LockableResource r1 = new LockableResource("r1", "");
+        r1.restoreState("project1#1", LockableResource.NOT_QUEUED, null, 0, null, null, 0);
+        journal.append(0, Collections.singletonList(LockStateJournal.toRecord(r1)));
+        // Crash while writing a record: all the fields are there, but the last one is cut
+        LockableResource r2 = new LockableResource("r2", "");
+        r2.restoreState(null, LockableResource.NOT_QUEUED, null, 0, "user1", "user2", 1234567890L);
+        String record = LockStateJournal.toRecord(r2);
+        try(OutputStream out = new FileOutputStream(new File(dir, SEGMENT + 0), true)) {
+            out.write(record.substring(0, record.length() - 3).getBytes("UTF-8"));
+        }
+
+        // Restart
+        journal = new LockStateJournal(dir);
+        Map<String, LockableResource> loaded = load("r1", "r2");
+        assertEquals(1, journal.replay(loaded));
+        assertTrue(loaded.get("r1").isLocked());
+        assertNull(loaded.get("r2").getReservedBy());
+        assertEquals(0, loaded.get("r2").getReservedUntil());
+
+        // New records are not appended to the incomplete one
+        assertEquals(1, journal.nextSegment());
+        journal.append(1, Collections.singletonList(record));
+        loaded = load("r1", "r2");
+        assertEquals(2, new LockStateJournal(dir).replay(loaded));
+        assertTrue(loaded.get("r1").isLocked());
+        assertEquals("user1", loaded.get("r2").getReservedBy());
+        assertEquals(1234567890L, loaded.get("r2").getReservedUntil());
+    }
+
+    private static Map<String, LockableResource> load(String... names) {
+        Map<String, LockableResource> res = new HashMap<>();
+        for(String name : names) {
+            res.put(name, new LockableResource(name, ""));
+        }
+        return res;
+    }
+}